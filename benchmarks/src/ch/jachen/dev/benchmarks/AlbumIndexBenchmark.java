@@ -0,0 +1,79 @@
+package ch.jachen.dev.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.jickr.FlickrException;
+import org.jickr.PhotoSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.jachen.dev.flickr.AlbumIndex;
+
+/**
+ * Index of the sets and collections kept between runs: load at start and
+ * lookup of a set not created yet (no Flickr call)
+ *
+ * @author jbrek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AlbumIndexBenchmark {
+
+	@Param({"1000", "10000"})
+	public int sets;
+
+	private File cacheFile;
+	private AlbumIndex index;
+	private int lookup = 0;
+
+	@Setup
+	public void setup() throws IOException, FlickrException {
+		cacheFile = File.createTempFile("syno2flickr-bench-", ".albums");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(cacheFile), "UTF-8");
+		try {
+			writer.write("T\t"+System.currentTimeMillis()+"\n");
+			for(int i=0; i<sets; i++){
+				writer.write("S\t"+(72157600000000000L+i)+"\tevent-"+i+"\n");
+				if(i % 50 == 0)
+					writer.write("C\t"+(72157700000000000L+i)+"\t/"+(2000 + i / 50)+"\n");
+			}
+		} finally {
+			writer.close();
+		}
+		index = load();
+	}
+
+	@TearDown
+	public void tearDown(){
+		cacheFile.delete();
+	}
+
+	@Benchmark
+	public AlbumIndex load() throws FlickrException {
+		return new AlbumIndex(null, cacheFile, 60);
+	}
+
+	@Benchmark
+	public PhotoSet getNewSet() throws FlickrException {
+		return index.getSet("new-event-"+(lookup++ % sets));
+	}
+}
@@ -0,0 +1,98 @@
+package ch.jachen.dev.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.jachen.dev.flickr.MediaType;
+
+/**
+ * Classification of the files: known extension (no read) and unknown
+ * extension (first bytes read)
+ *
+ * @author jbrek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MediaTypeBenchmark {
+
+	private File folder;
+	private File photo;
+	private File video;
+	private File sidecar;
+	private File unknownPhoto;
+	private File unknownFile;
+
+	@Setup
+	public void setup() throws IOException {
+		folder = new File(System.getProperty("java.io.tmpdir"), "syno2flickr-bench-mediatype");
+		folder.mkdirs();
+		photo = write("IMG_0001.JPG", 0xFF, 0xD8, 0xFF, 0xE0);
+		video = write("MVI_0001.mp4", 0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2');
+		sidecar = write("IMG_0001.xmp", '<', '?', 'x', 'm');
+		unknownPhoto = write("IMG_0002", 0xFF, 0xD8, 0xFF, 0xE1);
+		unknownFile = write("IMG_0003.bin", 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16);
+	}
+
+	@TearDown
+	public void tearDown(){
+		for(File f : new File[] { photo, video, sidecar, unknownPhoto, unknownFile })
+			f.delete();
+		folder.delete();
+	}
+
+	@Benchmark
+	public MediaType photo(){
+		return MediaType.of(photo);
+	}
+
+	@Benchmark
+	public MediaType video(){
+		return MediaType.of(video);
+	}
+
+	@Benchmark
+	public MediaType sidecar(){
+		return MediaType.of(sidecar);
+	}
+
+	@Benchmark
+	public MediaType sniffPhoto(){
+		return MediaType.of(unknownPhoto);
+	}
+
+	@Benchmark
+	public MediaType sniffOther(){
+		return MediaType.of(unknownFile);
+	}
+
+	private File write(String name, int... bytes) throws IOException {
+		File f = new File(folder, name);
+		OutputStream out = new FileOutputStream(f);
+		try {
+			for(int b : bytes)
+				out.write(b);
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+}
@@ -0,0 +1,65 @@
+package ch.jachen.dev.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.jachen.dev.util.Node;
+import ch.jachen.dev.util.Tree;
+
+/**
+ * Walk of a built tree: set of the files, count, and path of each file
+ * (rebuilt from the parent nodes)
+ *
+ * @author jbrek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NodeBenchmark {
+
+	@Param({"10000", "100000"}) // add 1000000 with -p files=10000,100000,1000000
+	public int files;
+
+	private Node root;
+
+	@Setup
+	public void setup() throws IOException {
+		root = new Tree(SyntheticFolder.create(files), SyntheticFolder.maxDepth).getRoot();
+	}
+
+	@Benchmark
+	public Set<Node> getFiles(){
+		return root.getFiles();
+	}
+
+	@Benchmark
+	public int countFiles(){
+		return root.countFiles();
+	}
+
+	@Benchmark
+	public void getFile(Blackhole bh){
+		for(Node node : root.getFiles()){
+			File f = node.getFile();
+			bh.consume(f);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package ch.jachen.dev.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Synthetic sync folder: year/event/IMG_nnnnn.jpg, 200 (empty) files per event
+ *
+ * Created once in the temporary folder and kept for the next runs, since
+ * creating a million files takes minutes. Delete the syno2flickr-bench-*
+ * folders of the temporary folder to reclaim the inodes.
+ *
+ * @author jbrek
+ */
+public class SyntheticFolder {
+
+	public final static int maxDepth = 3; // depth of the sync folder (syncFolderMaxDepth)
+	private final static int filesPerEvent = 200;
+	private final static int eventsPerYear = 50;
+
+	/**
+	 * Folder with a number of files
+	 *
+	 * @param files number of files
+	 * @return the folder, created if needed
+	 */
+	public static File create(int files) throws IOException {
+		File tmp = new File(System.getProperty("java.io.tmpdir"));
+		File folder = new File(tmp, "syno2flickr-bench-"+files);
+		File complete = new File(tmp, "syno2flickr-bench-"+files+".complete");
+		if(complete.exists())
+			return folder;
+
+		for(int i=0; i<files; i++){
+			int event = i / filesPerEvent;
+			File dir = new File(folder, String.format("%d/event-%04d", 2000 + event / eventsPerYear, event % eventsPerYear));
+			if(i % filesPerEvent == 0 && !dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("cannot create "+dir.getPath());
+			File f = new File(dir, String.format("IMG_%07d.jpg", i));
+			if(!f.exists() && !f.createNewFile())
+				throw new IOException("cannot create "+f.getPath());
+		}
+		if(!complete.createNewFile())
+			throw new IOException("cannot create "+complete.getPath());
+		return folder;
+	}
+}
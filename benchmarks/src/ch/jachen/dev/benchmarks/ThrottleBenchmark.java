@@ -0,0 +1,48 @@
+package ch.jachen.dev.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.jachen.dev.flickr.Throttle;
+
+/**
+ * Cost of the upload progress callback of parallel uploads when the rate is
+ * not limited (the common case), throughput in callbacks per second
+ *
+ * @author jbrek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+public class ThrottleBenchmark {
+
+	private final static long chunk = 64*1024; // bytes sent between two callbacks
+
+	private Throttle throttle;
+
+	@Setup
+	public void setup(){
+		throttle = new Throttle(new File(System.getProperty("java.io.tmpdir"), "syno2flickr-bench.properties"), 0, "");
+	}
+
+	@Benchmark
+	public void acquire(){
+		throttle.acquire(chunk);
+	}
+}
@@ -0,0 +1,76 @@
+package ch.jachen.dev.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.jachen.dev.util.Node;
+import ch.jachen.dev.util.Tree;
+import ch.jachen.dev.util.TreeSnapshot;
+
+/**
+ * Scan of the sync folder: full build, build from the snapshot of a previous
+ * scan (nothing changed) and streamed iteration (first uploads before the end
+ * of the scan)
+ *
+ * @author jbrek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeBenchmark {
+
+	@Param({"10000", "100000"}) // add 1000000 with -p files=10000,100000,1000000
+	public int files;
+
+	@Param({"1", "4"})
+	public int parallelism;
+
+	private File folder;
+	private TreeSnapshot snapshot;
+
+	@Setup
+	public void setup() throws IOException {
+		folder = SyntheticFolder.create(files);
+		Tree tree = newTree(null);
+		tree.getRoot();
+		snapshot = tree.getSnapshot();
+	}
+
+	@Benchmark
+	public Node build(){
+		return newTree(null).getRoot();
+	}
+
+	@Benchmark
+	public Node buildFromSnapshot(){
+		return newTree(snapshot).getRoot();
+	}
+
+	@Benchmark
+	public void iterate(Blackhole bh){
+		for(Node node : newTree(null))
+			bh.consume(node);
+	}
+
+	private Tree newTree(TreeSnapshot snapshot){
+		return new Tree(folder, SyntheticFolder.maxDepth, Collections.<File>emptySet(), snapshot, parallelism);
+	}
+}
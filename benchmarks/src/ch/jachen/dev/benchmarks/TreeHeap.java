@@ -0,0 +1,60 @@
+package ch.jachen.dev.benchmarks;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import ch.jachen.dev.util.Tree;
+
+/**
+ * Heap retained by the tree of a sync folder, in bytes per file
+ *
+ * Usage: java -cp benchmarks.jar ch.jachen.dev.benchmarks.TreeHeap [files,files...] (10000,100000,500000)
+ *
+ * The tree of a synthetic folder (SyntheticFolder) is built and kept, and the
+ * heap used is compared before and after, once the garbage is collected. Run it
+ * with the serial collector and a fixed heap for stable numbers, e.g.
+ * java -XX:+UseSerialGC -Xms1g -Xmx1g.
+ *
+ * @author jbrek
+ */
+public class TreeHeap {
+
+	private static Tree tree; /// Tree measured (kept reachable)
+
+	public static void main(String[] args) throws Exception {
+		String[] counts = (args.length>0 ? args[0] : "10000,100000,500000").split(",");
+		System.out.println(String.format("%10s %14s %14s", "files", "heap (KB)", "bytes/file"));
+		for(String count : counts){
+			int files = Integer.parseInt(count.trim());
+			File folder = SyntheticFolder.create(files);
+
+			long before = usedHeap();
+			tree = new Tree(folder, SyntheticFolder.maxDepth);
+			int found = tree.getRoot().countFiles();
+			long retained = usedHeap() - before;
+			if(found!=files)
+				System.out.println("Warning: "+found+" files found in "+folder.getPath()+" ("+files+" expected).");
+
+			System.out.println(String.format("%10d %14d %14d", files, retained/1024, retained/files));
+			tree = null;
+		}
+	}
+
+	/**
+	 * Heap used once the garbage is collected (until it no longer shrinks)
+	 */
+	private static long usedHeap() throws InterruptedException {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long used = Long.MAX_VALUE;
+		for(int i=0; i<10; i++){
+			memory.gc();
+			Thread.sleep(50);
+			long now = memory.getHeapMemoryUsage().getUsed();
+			if(now>=used)
+				return now;
+			used = now;
+		}
+		return used;
+	}
+}
@@ -0,0 +1,86 @@
+package ch.jachen.dev.benchmarks;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.jachen.dev.flickr.UploadPlanner;
+import ch.jachen.dev.flickr.UploadQueue;
+import ch.jachen.dev.util.Node;
+import ch.jachen.dev.util.Tree;
+
+/**
+ * Upload plan of a large folder when the remaining bandwidth fits half of it
+ * (nodes built without files on disk, plan output discarded)
+ *
+ * @author jbrek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadPlannerBenchmark {
+
+	private final static long maxFileSize = 8L*1024*1024;
+
+	@Param({"10000", "100000", "1000000"})
+	public int files;
+
+	@Param({"folder", "oldest", "smallest", "fair"})
+	public String order;
+
+	private List<Node> nodes;
+	private UploadPlanner planner;
+	private PrintStream console;
+
+	@Setup
+	public void setup(){
+		File folder = new File(System.getProperty("java.io.tmpdir"), "syno2flickr-bench-plan");
+		Tree tree = new Tree(folder, SyntheticFolder.maxDepth);
+		Random random = new Random(42);
+		nodes = new ArrayList<Node>(files);
+		long total = 0;
+		for(int i=0; i<files; i++){
+			long size = 1 + (long) (random.nextDouble() * maxFileSize);
+			File f = new File(folder, String.format("%d/event-%04d/IMG_%07d.jpg", 2000 + i / 10000, (i / 200) % 50, i));
+			nodes.add(tree.nodeOf(f, size, random.nextInt(Integer.MAX_VALUE) * 1000L));
+			total += size;
+		}
+		planner = new UploadPlanner(total / 2, 2*maxFileSize, 2*maxFileSize, null, UploadQueue.Order.parse(order));
+
+		console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+		}));
+	}
+
+	@TearDown
+	public void tearDown(){
+		System.setOut(console);
+	}
+
+	@Benchmark
+	public List<Node> plan(){
+		return planner.plan(nodes);
+	}
+}
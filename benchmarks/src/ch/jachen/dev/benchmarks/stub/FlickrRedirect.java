@@ -0,0 +1,78 @@
+package ch.jachen.dev.benchmarks.stub;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.util.Locale;
+
+/**
+ * Sends the Flickr calls of this JVM to the stub
+ *
+ * jickr connects to fixed Flickr URLs (HTTPS): http and https URLs of flickr.com
+ * hosts are opened on the stub instead (plain HTTP, same path and query).
+ * Other URLs are opened as usual. Can be installed once per JVM.
+ *
+ * @author jbrek
+ */
+public class FlickrRedirect {
+
+	/**
+	 * Redirect the Flickr URLs to the stub
+	 *
+	 * @param port port of the stub on localhost
+	 */
+	public static void install(int port) throws MalformedURLException {
+		// URLs created before the factory keep the default handlers
+		final URL stub = new URL("http://127.0.0.1:"+port+"/");
+		final URL http = new URL("http://localhost/");
+		final URL https = new URL("https://localhost/");
+
+		URL.setURLStreamHandlerFactory(new URLStreamHandlerFactory() {
+			@Override
+			public URLStreamHandler createURLStreamHandler(String protocol) {
+				if("http".equals(protocol))
+					return new Handler(stub, http);
+				if("https".equals(protocol))
+					return new Handler(stub, https);
+				return null;
+			}
+		});
+	}
+
+	private static class Handler extends URLStreamHandler {
+
+		private final URL stub;
+		private final URL standard; /// URL with the default handler of the protocol
+
+		Handler(URL stub, URL standard){
+			this.stub = stub;
+			this.standard = standard;
+		}
+
+		@Override
+		protected URLConnection openConnection(URL u) throws IOException {
+			return target(u).openConnection();
+		}
+
+		@Override
+		protected URLConnection openConnection(URL u, Proxy p) throws IOException {
+			return target(u).openConnection(p);
+		}
+
+		@Override
+		protected int getDefaultPort() {
+			return standard.getDefaultPort();
+		}
+
+		private URL target(URL u) throws MalformedURLException {
+			String host = u.getHost().toLowerCase(Locale.ENGLISH);
+			if(host.equals("flickr.com") || host.endsWith(".flickr.com"))
+				return new URL(stub, u.getFile());
+			return new URL(standard, u.toExternalForm());
+		}
+	}
+}
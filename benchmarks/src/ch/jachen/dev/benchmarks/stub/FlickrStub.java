@@ -0,0 +1,390 @@
+package ch.jachen.dev.benchmarks.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for the Flickr API (plain HTTP on localhost)
+ *
+ * Answers the calls Syno2Flickr makes through jickr: upload, photosets,
+ * collections, licenses, people (upload status) and the token check. Sets,
+ * collections and photos are kept in memory. Latency, bandwidth, errors and
+ * rate limit can be set to see how concurrency and retries behave.
+ *
+ * Errors are injected on uploads only: Flickr codes (e.g. 6, upload limit)
+ * are answered with a failed response, -999 closes the connection without
+ * any response. Requests over the rate limit are answered with code 105
+ * (service unavailable). Uploads without a Content-Length are refused with
+ * HTTP 411, as by Flickr.
+ *
+ * @author jbrek
+ */
+public class FlickrStub {
+
+	private final static long bandwidthMaxBytes = 1024L*1024*1024*1024; // monthly bandwidth shown (unlimited account)
+	private final static int chunk = 64*1024; // bytes read between two bandwidth checks
+	public final static int codeNoResponse = -999;
+	private final static int codeRateLimited = 105;
+	private final static int codeSetNotFound = 1;
+	private final static int codePhotoAlreadyInSet = 3;
+	private final static int codePhotoNotFound = 1;
+
+	private final int port;
+	private final long latencyMillis; /// Delay added to each response
+	private final long bandwidthBytes; /// Upload bandwidth, bytes per second (0: unlimited)
+	private final Map<Integer, Double> errors; /// Probability of each error code on uploads
+	private final int rateLimit; /// Requests per second (0: unlimited)
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private final Random random = new Random();
+	private final AtomicLong ids = new AtomicLong(72157600000000000L);
+	private final Map<String, String> sets = new ConcurrentHashMap<String, String>(); /// Title by id
+	private final Map<String, Set<String>> setPhotos = new ConcurrentHashMap<String, Set<String>>(); /// Photos by set id
+	private final Map<String, String> collections = new ConcurrentHashMap<String, String>(); /// Title by id
+	private final Set<String> photos = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); /// Ids of the uploaded photos
+	private final ConcurrentHashMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>(); /// Calls by method
+	private final List<Long> uploadNanos = Collections.synchronizedList(new ArrayList<Long>()); /// Time of each upload answered
+	private final AtomicLong uploadedBytes = new AtomicLong();
+	private final AtomicLong failedUploads = new AtomicLong();
+	private long second; /// Current second of the rate limit (guarded by this)
+	private int requests; /// Requests during the current second (guarded by this)
+
+	/**
+	 * @param port port (0: any free port)
+	 * @param latencyMillis delay added to each response
+	 * @param bandwidthKB upload bandwidth in KB/s (0: unlimited)
+	 * @param errors probability of each error code on uploads, e.g. "6:0.001,-999:0.01"
+	 * @param rateLimit requests per second (0: unlimited)
+	 */
+	public FlickrStub(int port, long latencyMillis, int bandwidthKB, String errors, int rateLimit) {
+		this.port = port;
+		this.latencyMillis = latencyMillis;
+		this.bandwidthBytes = bandwidthKB * 1024L;
+		this.errors = parseErrors(errors);
+		this.rateLimit = rateLimit;
+	}
+
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/services/upload", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				upload(exchange);
+			}
+		});
+		server.createContext("/services/rest", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				rest(exchange);
+			}
+		});
+		server.start();
+	}
+
+	public void stop(){
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Duration of each upload answered with success (read of the file included), nanoseconds
+	 */
+	public List<Long> getUploadNanos(){
+		synchronized (uploadNanos) {
+			return new ArrayList<Long>(uploadNanos);
+		}
+	}
+
+	public long getUploadedBytes(){
+		return uploadedBytes.get();
+	}
+
+	public long getFailedUploads(){
+		return failedUploads.get();
+	}
+
+	/**
+	 * Number of calls by method (upload included)
+	 */
+	public Map<String, Long> getCalls(){
+		Map<String, Long> result = new HashMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> e : calls.entrySet())
+			result.put(e.getKey(), e.getValue().get());
+		return result;
+	}
+
+	private void upload(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		count("upload");
+		try {
+			if(exchange.getRequestHeaders().getFirst("Content-Length")==null){
+				exchange.sendResponseHeaders(411, -1);
+				return;
+			}
+			long bytes = read(exchange.getRequestBody(), true);
+			if(!allowed()){
+				fail(exchange, codeRateLimited, "Service currently unavailable");
+				return;
+			}
+			sleep(latencyMillis);
+			Integer error = drawError();
+			if(error!=null){
+				failedUploads.incrementAndGet();
+				if(error==codeNoResponse)
+					return; // connection closed without response
+				fail(exchange, error, "Injected error");
+				return;
+			}
+			String id = String.valueOf(ids.incrementAndGet());
+			photos.add(id);
+			ok(exchange, "<photoid>"+id+"</photoid>");
+			uploadedBytes.addAndGet(bytes);
+			uploadNanos.add(System.nanoTime() - start);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void rest(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> params = new HashMap<String, String>();
+			parse(exchange.getRequestURI().getRawQuery(), params);
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			read(exchange.getRequestBody(), body);
+			if(body.size()>0)
+				parse(body.toString("UTF-8"), params);
+			String method = params.containsKey("method") ? params.get("method") : "";
+			count(method);
+			if(!allowed()){
+				fail(exchange, codeRateLimited, "Service currently unavailable");
+				return;
+			}
+			sleep(latencyMillis);
+			answer(exchange, method, params);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Answer of a REST method (stat="ok" with an empty body for other methods)
+	 */
+	private void answer(HttpExchange exchange, String method, Map<String, String> params) throws IOException {
+		if("flickr.auth.oauth.checkToken".equals(method) || "flickr.auth.checkToken".equals(method)){
+			ok(exchange, "<oauth><token>"+xml(String.valueOf(params.get("oauth_token")))+"</token><perms>delete</perms>"+
+					"<user nsid=\"12345678@N00\" username=\"stub\" fullname=\"Flickr stub\"/></oauth>");
+		} else if("flickr.people.getInfo".equals(method) || "flickr.people.findByUsername".equals(method)){
+			ok(exchange, "<person id=\"12345678@N00\" nsid=\"12345678@N00\" ispro=\"1\"><username>stub</username>"+
+					"<realname>Flickr stub</realname><photos><count>"+(ids.get()-72157600000000000L)+"</count></photos></person>");
+		} else if("flickr.people.getUploadStatus".equals(method)){
+			ok(exchange, "<user id=\"12345678@N00\" ispro=\"1\"><username>stub</username>"+
+					"<bandwidth maxbytes=\""+bandwidthMaxBytes+"\" maxkb=\""+bandwidthMaxBytes/1024+"\" usedbytes=\""+uploadedBytes.get()+"\" usedkb=\""+uploadedBytes.get()/1024+
+					"\" remainingbytes=\""+(bandwidthMaxBytes-uploadedBytes.get())+"\" remainingkb=\""+(bandwidthMaxBytes-uploadedBytes.get())/1024+"\" unlimited=\"1\"/>"+
+					"<filesize maxbytes=\"209715200\" maxkb=\"204800\" maxmb=\"200\"/>"+
+					"<videosize maxbytes=\"1073741824\" maxkb=\"1048576\" maxmb=\"1024\"/>"+
+					"<sets created=\""+sets.size()+"\" remaining=\"lots\"/><videos uploaded=\"0\" remaining=\"lots\"/></user>");
+		} else if("flickr.photosets.getList".equals(method)){
+			StringBuilder sb = new StringBuilder("<photosets page=\"1\" pages=\"1\" perpage=\""+sets.size()+"\" total=\""+sets.size()+"\">");
+			for(Map.Entry<String, String> set : sets.entrySet())
+				sb.append(photoset(set.getKey(), set.getValue()));
+			ok(exchange, sb.append("</photosets>").toString());
+		} else if("flickr.photosets.create".equals(method)){
+			String id = String.valueOf(ids.incrementAndGet());
+			sets.put(id, params.containsKey("title") ? params.get("title") : "");
+			setPhotos.put(id, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+			setPhotos.get(id).add(params.get("primary_photo_id"));
+			ok(exchange, "<photoset id=\""+id+"\" url=\"http://www.flickr.com/photos/stub/sets/"+id+"/\"/>");
+		} else if("flickr.photosets.getInfo".equals(method)){
+			String id = params.get("photoset_id");
+			if(id==null || !sets.containsKey(id))
+				fail(exchange, codeSetNotFound, "Photoset not found");
+			else
+				ok(exchange, photoset(id, sets.get(id)));
+		} else if("flickr.photosets.addPhoto".equals(method)){
+			Set<String> photos = setPhotos.get(params.get("photoset_id"));
+			if(photos==null)
+				fail(exchange, codeSetNotFound, "Photoset not found");
+			else if(!photos.add(params.get("photo_id")))
+				fail(exchange, codePhotoAlreadyInSet, "Photo already in set");
+			else
+				ok(exchange, "");
+		} else if("flickr.collections.getTree".equals(method)){
+			StringBuilder sb = new StringBuilder("<collections>");
+			for(Map.Entry<String, String> c : collections.entrySet())
+				sb.append("<collection id=\""+c.getKey()+"\" title=\""+xml(c.getValue())+"\" description=\"\"/>");
+			ok(exchange, sb.append("</collections>").toString());
+		} else if("flickr.collections.create".equals(method)){
+			String id = String.valueOf(ids.incrementAndGet());
+			collections.put(id, params.containsKey("title") ? params.get("title") : "");
+			ok(exchange, "<collection id=\""+id+"\"/>");
+		} else if("flickr.collections.getInfo".equals(method)){
+			String id = params.get("collection_id");
+			if(id==null || !collections.containsKey(id))
+				fail(exchange, codeSetNotFound, "Collection not found");
+			else
+				ok(exchange, "<collection id=\""+id+"\" child_count=\"0\"><title>"+xml(collections.get(id))+"</title><description/></collection>");
+		} else if("flickr.photos.getInfo".equals(method)){
+			String id = params.get("photo_id");
+			if(id==null || !photos.contains(id))
+				fail(exchange, codePhotoNotFound, "Photo not found");
+			else
+				ok(exchange, "<photo id=\""+id+"\" secret=\"0\" server=\"0\" farm=\"0\" dateuploaded=\"0\" isfavorite=\"0\" license=\"0\" rotation=\"0\" media=\"photo\">"+
+						"<owner nsid=\"12345678@N00\" username=\"stub\" realname=\"Flickr stub\"/><title/><description/>"+
+						"<visibility ispublic=\"0\" isfriend=\"0\" isfamily=\"0\"/><dates posted=\"0\" taken=\"\" lastupdate=\"0\"/></photo>");
+		} else if("flickr.photos.licenses.getInfo".equals(method)){
+			ok(exchange, "<licenses><license id=\"0\" name=\"All Rights Reserved\" url=\"\"/>"+
+					"<license id=\"4\" name=\"Attribution License\" url=\"http://creativecommons.org/licenses/by/2.0/\"/></licenses>");
+		} else {
+			ok(exchange, ""); // setLicense, collections.editSets...
+		}
+	}
+
+	private String photoset(String id, String title){
+		Set<String> photos = setPhotos.get(id);
+		String primary = photos!=null && !photos.isEmpty() ? photos.iterator().next() : "0";
+		return "<photoset id=\""+id+"\" owner=\"12345678@N00\" primary=\""+primary+"\" photos=\""+(photos!=null ? photos.size() : 0)+
+				"\" videos=\"0\"><title>"+xml(title)+"</title><description/></photoset>";
+	}
+
+	private void ok(HttpExchange exchange, String content) throws IOException {
+		send(exchange, "<rsp stat=\"ok\">"+content+"</rsp>");
+	}
+
+	private void fail(HttpExchange exchange, int code, String message) throws IOException {
+		send(exchange, "<rsp stat=\"fail\"><err code=\""+code+"\" msg=\""+xml(message)+"\"/></rsp>");
+	}
+
+	private void send(HttpExchange exchange, String rsp) throws IOException {
+		byte[] body = ("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"+rsp+"\n").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * Read a request body, at the stub bandwidth for uploads
+	 * @return bytes read
+	 */
+	private long read(InputStream in, boolean throttled) throws IOException {
+		byte[] buffer = new byte[chunk];
+		long total = 0;
+		long start = System.nanoTime();
+		int r;
+		while((r = in.read(buffer))>0){
+			total += r;
+			if(throttled && bandwidthBytes>0){
+				long ahead = total * 1000000000L / bandwidthBytes - (System.nanoTime() - start);
+				if(ahead>0)
+					sleep(TimeUnit.NANOSECONDS.toMillis(ahead));
+			}
+		}
+		return total;
+	}
+
+	private void read(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[4096];
+		int r;
+		while((r = in.read(buffer))>0)
+			out.write(buffer, 0, r);
+	}
+
+	private synchronized boolean allowed(){
+		if(rateLimit<=0)
+			return true;
+		long now = System.currentTimeMillis() / 1000;
+		if(now!=second){
+			second = now;
+			requests = 0;
+		}
+		return ++requests <= rateLimit;
+	}
+
+	private Integer drawError(){
+		double draw;
+		synchronized (random) {
+			draw = random.nextDouble();
+		}
+		for(Map.Entry<Integer, Double> e : errors.entrySet()){
+			if(draw < e.getValue())
+				return e.getKey();
+			draw -= e.getValue();
+		}
+		return null;
+	}
+
+	private void count(String method){
+		calls.putIfAbsent(method, new AtomicLong());
+		calls.get(method).incrementAndGet();
+	}
+
+	private static void sleep(long millis){
+		if(millis<=0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void parse(String query, Map<String, String> params) throws UnsupportedEncodingException {
+		if(query==null)
+			return;
+		for(String param : query.split("&")){
+			int eq = param.indexOf('=');
+			if(eq>0)
+				params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq+1), "UTF-8"));
+		}
+	}
+
+	private static Map<Integer, Double> parseErrors(String errors){
+		Map<Integer, Double> result = new HashMap<Integer, Double>();
+		if(errors==null)
+			return result;
+		for(String error : errors.split(",")){
+			if(error.trim().length()==0)
+				continue;
+			String[] e = error.trim().split(":");
+			try {
+				result.put(Integer.parseInt(e[0].trim()), Double.parseDouble(e[1].trim()));
+			} catch (Exception ex) {
+				System.out.println("Warning: invalid error \""+error.trim()+"\" (expected code:probability). Ignored.");
+			}
+		}
+		return result;
+	}
+
+	private static String xml(String s){
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
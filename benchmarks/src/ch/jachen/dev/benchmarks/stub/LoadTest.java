@@ -0,0 +1,171 @@
+package ch.jachen.dev.benchmarks.stub;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import ch.jachen.dev.flickr.Syno2Flickr;
+
+/**
+ * Run Syno2Flickr against the Flickr stub and report its throughput
+ *
+ * Usage: java -cp benchmarks.jar ch.jachen.dev.benchmarks.stub.LoadTest &lt;properties file&gt; files=n [option=value...]
+ *
+ * Stub options: port (0: any), latencyMillis (50), bandwidthKB (0: unlimited),
+ * errors (e.g. 6:0.001,-999:0.01), rateLimit (requests/s, 0: unlimited).
+ * Test options: files (number of files generated, required), fileSizeKB (2048).
+ * Other options override the properties as on the Syno2Flickr command line
+ * (e.g. uploadConcurrency=8).
+ *
+ * Everything happens in a work folder deleted at the end: the properties file is
+ * copied there (the journal and the other state files of real runs are not
+ * touched), and the sync, archive and error folders are always folders of it, so
+ * that no real photo is uploaded, archived or deleted. A token of the user must
+ * already be stored (any token is accepted by the stub).
+ *
+ * @author jbrek
+ */
+public class LoadTest {
+
+	private final static double denomMega = 1024d*1024d;
+	private final static int filesPerAlbum = 100;
+
+	public static void main(String[] args) throws Exception {
+		if(args.length<1){
+			System.out.println("Usage: LoadTest <properties file> files=n [option=value...]");
+			System.exit(1);
+		}
+
+		// Options
+		Map<String, String> options = new TreeMap<String, String>();
+		List<String> toolArgs = new ArrayList<String>();
+		Path work = Files.createTempDirectory("syno2flickr-loadtest-");
+		Path properties = work.resolve("syno2flickr.properties");
+		Files.copy(new File(args[0]).toPath(), properties, StandardCopyOption.REPLACE_EXISTING);
+		toolArgs.add(properties.toString());
+		for(int i=1; i<args.length; i++){
+			int eq = args[i].indexOf('=');
+			String name = eq>0 ? args[i].substring(0, eq) : args[i];
+			if(name.matches("port|latencyMillis|bandwidthKB|errors|rateLimit|files|fileSizeKB"))
+				options.put(name, args[i].substring(eq+1));
+			else
+				toolArgs.add(args[i]);
+		}
+		int files = option(options, "files", 0);
+		if(files<=0){
+			System.out.println("Error: files option required (number of files generated, e.g. files=500).");
+			delete(work);
+			System.exit(1);
+		}
+
+		// Sync, archive and error folders in the work folder (set last: they win over the options)
+		File sync = work.resolve("sync").toFile();
+		generate(sync, files, option(options, "fileSizeKB", 2048));
+		toolArgs.add("syncFolder="+sync.getPath());
+		toolArgs.add("archiveFolder="+work.resolve("archive").toFile().getPath());
+		toolArgs.add("errorFolder="+work.resolve("error").toFile().getPath());
+		work.resolve("archive").toFile().mkdirs();
+		work.resolve("error").toFile().mkdirs();
+
+		// Stub
+		FlickrStub stub = new FlickrStub(option(options, "port", 0), option(options, "latencyMillis", 50), option(options, "bandwidthKB", 0),
+										 options.get("errors"), option(options, "rateLimit", 0));
+		stub.start();
+		FlickrRedirect.install(stub.getPort());
+		System.out.println("Flickr stub listening on port "+stub.getPort()+" "+options+".");
+
+		long start = System.nanoTime();
+		try {
+			Syno2Flickr.main(toolArgs.toArray(new String[toolArgs.size()]));
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			stub.stop();
+			report(stub, elapsed);
+			delete(work);
+		}
+		System.exit(0);
+	}
+
+	private static void report(FlickrStub stub, long elapsedNanos){
+		List<Long> uploads = stub.getUploadNanos();
+		Collections.sort(uploads);
+		double seconds = elapsedNanos / 1e9;
+		System.out.println("\nLoad test");
+		System.out.println(String.format("  Duration:   %.1f s", seconds));
+		System.out.println(String.format("  Uploaded:   %d files, %.1f MB (%d failed by the stub)", uploads.size(), stub.getUploadedBytes()/denomMega, stub.getFailedUploads()));
+		System.out.println(String.format("  Throughput: %.2f files/s, %.2f MB/s", uploads.size()/seconds, stub.getUploadedBytes()/denomMega/seconds));
+		if(!uploads.isEmpty())
+			System.out.println(String.format("  Latency:    p50 %d ms, p99 %d ms, max %d ms (per file upload)",
+											 percentile(uploads, 50), percentile(uploads, 99), uploads.get(uploads.size()-1)/1000000));
+		System.out.println("  Calls:      "+new TreeMap<String, Long>(stub.getCalls()));
+	}
+
+	/**
+	 * Percentile of sorted durations, in milliseconds
+	 */
+	private static long percentile(List<Long> sorted, int percentile){
+		int index = (int) Math.ceil(percentile / 100d * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index)) / 1000000;
+	}
+
+	/**
+	 * Generate JPEG files (random content) in albums of 100 files
+	 */
+	private static void generate(File folder, int files, int sizeKB) throws IOException {
+		Random random = new Random(42);
+		byte[] content = new byte[sizeKB*1024];
+		for(int i=0; i<files; i++){
+			File album = new File(folder, String.format("album-%04d", i / filesPerAlbum));
+			album.mkdirs();
+			random.nextBytes(content); // distinct files (duplicates detection)
+			content[0] = (byte) 0xFF;
+			content[1] = (byte) 0xD8;
+			content[2] = (byte) 0xFF;
+			OutputStream out = new FileOutputStream(new File(album, String.format("IMG_%06d.jpg", i)));
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+		}
+		System.out.println(files+" files of "+sizeKB+"KB generated in "+folder.getPath()+".");
+	}
+
+	private static int option(Map<String, String> options, String name, int defaultValue){
+		try {
+			return options.containsKey(name) ? Integer.parseInt(options.get(name).trim()) : defaultValue;
+		} catch (NumberFormatException e) {
+			System.out.println("Warning: invalid "+name+" \""+options.get(name)+"\". Default value "+defaultValue+" used.");
+			return defaultValue;
+		}
+	}
+
+	private static void delete(Path folder) throws IOException {
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
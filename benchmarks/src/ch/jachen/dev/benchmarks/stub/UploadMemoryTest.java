@@ -0,0 +1,77 @@
+package ch.jachen.dev.benchmarks.stub;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import ch.jachen.dev.flickr.FlickrUpload;
+
+/**
+ * Memory regression test of the uploads: a large file sent with a small heap
+ *
+ * Usage: java -Xmx64m -cp benchmarks.jar ch.jachen.dev.benchmarks.stub.UploadMemoryTest [sizeMB (2048)]
+ *
+ * A sparse file is sent to the upload service of the Flickr stub by the upload
+ * request of the tool (FlickrUpload): multipart body with its Content-Length,
+ * file read through a FileChannel. If the body were kept in the heap, the upload
+ * would fail with an OutOfMemoryError; without Content-Length, the stub answers
+ * HTTP 411. Exits with 1 if the upload fails or if the stub did not receive the
+ * whole file.
+ *
+ * @author jbrek
+ */
+public class UploadMemoryTest {
+
+	private final static double denomMega = 1024d*1024d;
+
+	public static void main(String[] args) throws Exception {
+		long size = (args.length>0 ? Long.parseLong(args[0].trim()) : 2048) * 1024L*1024L;
+
+		File f = File.createTempFile("syno2flickr-upload-", ".mp4");
+		FlickrStub stub = new FlickrStub(0, 0, 0, null, 0);
+		boolean ok = false;
+		try {
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try {
+				file.setLength(size); // sparse: no disk space used
+			} finally {
+				file.close();
+			}
+
+			stub.start();
+			FlickrUpload upload = new FlickrUpload("http://127.0.0.1:"+stub.getPort()+"/services/upload/", "key", "secret", "token");
+			System.out.println(String.format("Uploading %.0f MB with a heap of %.0f MB...", size/denomMega, Runtime.getRuntime().maxMemory()/denomMega));
+
+			long start = System.nanoTime();
+			String photoId = upload.send(f, false, false, false, null);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			ok = photoId!=null && stub.getUploadedBytes()>=size;
+
+			System.out.println(String.format("  Duration:  %.1f s (%.1f MB/s)", seconds, size/denomMega/seconds));
+			System.out.println(String.format("  Received:  %.1f MB", stub.getUploadedBytes()/denomMega));
+			System.out.println(String.format("  Heap peak: %.1f MB", heapPeak()/denomMega));
+			System.out.println(ok ? "OK (id: "+photoId+")" : "FAILED");
+		} catch (FlickrUpload.UploadException e) {
+			System.out.println("FAILED: "+e.getCode()+" "+e.getMessage());
+		} catch (OutOfMemoryError e) {
+			System.out.println("FAILED: "+e);
+		} finally {
+			stub.stop();
+			f.delete();
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Highest heap used since the start of the JVM (sum of the peaks of the heap pools)
+	 */
+	private static long heapPeak(){
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if(pool.getType()==MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+}
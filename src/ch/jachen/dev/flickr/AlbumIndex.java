@@ -0,0 +1,234 @@
+package ch.jachen.dev.flickr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jickr.FlickrException;
+import org.jickr.PhotoCollection;
+import org.jickr.PhotoSet;
+import org.jickr.User;
+
+/**
+ * Index of the sets and collections of the user
+ *
+ * Sets are indexed by title and collections by folder path, so that finding the
+ * set or the collections of a photo does not scan all the albums of the user.
+ * A set or a collection created is added to the index (no new listing).
+ * The index can be kept between runs (albumCacheMinutes): sets and collections
+ * are then fetched one by one when needed instead of listing them all.
+ *
+ * @author jbrek
+ */
+public class AlbumIndex {
+
+	private final static Charset charset = Charset.forName("UTF-8");
+
+	private final User user; /// User Flickr authenticated
+	private final File cacheFile; /// Index kept between runs (null if not kept)
+	private final Map<String, Album<PhotoSet>> sets = new HashMap<String, Album<PhotoSet>>(); /// Sets by title
+	private final Map<String, Album<PhotoCollection>> collections = new HashMap<String, Album<PhotoCollection>>(); /// Collections by folder path
+	private List<PhotoCollection> userCollections; /// Collections tree of the user (fetched when a path is not indexed)
+	private long listed; /// Time of the listing of the sets
+
+	/**
+	 * Build the index
+	 *
+	 * @param user user Flickr authenticated
+	 * @param cacheFile index kept between runs (null to list the albums at each run)
+	 * @param cacheMinutes age of the kept index before the albums are listed again
+	 * @throws FlickrException if the albums cannot be listed
+	 */
+	public AlbumIndex(User user, File cacheFile, int cacheMinutes) throws FlickrException {
+		this.user = user;
+		this.cacheFile = cacheMinutes>0 ? cacheFile : null;
+		if(this.cacheFile!=null && load(TimeUnit.MINUTES.toMillis(cacheMinutes)))
+			return;
+
+		listed = System.currentTimeMillis();
+		long start = System.nanoTime();
+		List<PhotoSet> userSets;
+		try {
+			userSets = user.getPhotoSets();
+		} finally {
+			PhotoOrganizer.call("photosets.getList").since(start);
+		}
+		for(PhotoSet set : userSets){
+			if(!sets.containsKey(set.getTitle()))
+				sets.put(set.getTitle(), new Album<PhotoSet>(set.getID(), set));
+		}
+	}
+
+	/**
+	 * Get the set with a title
+	 *
+	 * @return the set, null if none
+	 * @throws FlickrException if the set cannot be fetched
+	 */
+	public synchronized PhotoSet getSet(String title) throws FlickrException {
+		Album<PhotoSet> album = sets.get(title);
+		if(album==null)
+			return null;
+		if(album.value==null){
+			long start = System.nanoTime();
+			try {
+				album.value = PhotoSet.findByID(album.id);
+			} finally {
+				PhotoOrganizer.call("photosets.getInfo").since(start);
+			}
+		}
+		return album.value;
+	}
+
+	/**
+	 * Add a set created
+	 */
+	public synchronized void putSet(PhotoSet set){
+		sets.put(set.getTitle(), new Album<PhotoSet>(set.getID(), set));
+	}
+
+	/**
+	 * Forget a set (deleted since indexed)
+	 */
+	public synchronized void removeSet(String title){
+		sets.remove(title);
+	}
+
+	/**
+	 * Get the collection of a folder
+	 *
+	 * @param path path of the folder in the sync folder (key of the collection)
+	 * @param name name of the collection
+	 * @return the collection, null if none
+	 * @throws FlickrException if the collections cannot be fetched
+	 */
+	public synchronized PhotoCollection getCollection(String path, String name) throws FlickrException {
+		Album<PhotoCollection> album = collections.get(path);
+		if(album!=null){
+			if(album.value==null){
+				long start = System.nanoTime();
+				try {
+					album.value = PhotoCollection.findByID(album.id);
+				} finally {
+					PhotoOrganizer.call("collections.getInfo").since(start);
+				}
+			}
+			return album.value;
+		}
+
+		// Not indexed yet: look for it in the collections tree
+		if(userCollections==null){
+			long start = System.nanoTime();
+			try {
+				userCollections = user.getCollections(false);
+			} finally {
+				PhotoOrganizer.call("collections.getTree").since(start);
+			}
+		}
+		for(PhotoCollection pc : userCollections){
+			PhotoCollection result = pc.findCollectionByName(name);
+			if(result!=null){
+				collections.put(path, new Album<PhotoCollection>(result.getId(), result));
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a collection created
+	 */
+	public synchronized void putCollection(String path, PhotoCollection collection){
+		collections.put(path, new Album<PhotoCollection>(collection.getId(), collection));
+	}
+
+	/**
+	 * Keep the index for next runs (if enabled)
+	 */
+	public synchronized void save(){
+		if(cacheFile==null)
+			return;
+		try {
+			File tmp = new File(cacheFile.getPath()+".tmp");
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), charset));
+			try {
+				writer.write("T\t"+listed+"\n");
+				for(Map.Entry<String, Album<PhotoSet>> e : sets.entrySet())
+					writer.write("S\t"+e.getValue().id+"\t"+e.getKey()+"\n");
+				for(Map.Entry<String, Album<PhotoCollection>> e : collections.entrySet())
+					writer.write("C\t"+e.getValue().id+"\t"+e.getKey()+"\n");
+			} finally {
+				writer.close();
+			}
+			Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Warning: cannot write album index "+cacheFile.getPath()+".\n"+e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the kept index
+	 *
+	 * @return false if there is no index or it is too old
+	 */
+	private boolean load(long maxAge){
+		if(!cacheFile.exists())
+			return false;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), charset));
+			try {
+				String line = reader.readLine();
+				if(line==null || !line.startsWith("T\t"))
+					return false;
+				listed = Long.parseLong(line.substring(2));
+				if(System.currentTimeMillis()-listed > maxAge)
+					return false;
+				while((line = reader.readLine())!=null){
+					String[] fields = line.split("\t", 3);
+					if(fields.length!=3)
+						continue;
+					if("S".equals(fields[0]))
+						sets.put(fields[2], new Album<PhotoSet>(fields[1], null));
+					else if("C".equals(fields[0]))
+						collections.put(fields[2], new Album<PhotoCollection>(fields[1], null));
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			sets.clear();
+			collections.clear();
+			return false;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Set or collection: id and object (fetched when first needed)
+	 */
+	private static class Album<T> {
+
+		private final String id;
+		private T value;
+
+		Album(String id, T value){
+			this.id = id;
+			this.value = value;
+		}
+	}
+}
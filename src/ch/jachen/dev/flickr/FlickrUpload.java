@@ -0,0 +1,254 @@
+package ch.jachen.dev.flickr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jickr.Auth;
+import org.jickr.User;
+
+import ch.jachen.dev.util.FileUtils;
+
+/**
+ * Upload request to Flickr sent by the tool
+ *
+ * jickr writes the multipart body of an upload to an HttpURLConnection without a
+ * streaming mode: the JDK keeps the whole body in the heap to set its length, so a
+ * video of several GB cannot be sent with a small heap. Here the length of the
+ * multipart body is computed first (Content-Length, fixed length streaming mode)
+ * and the file is sent from a FileChannel through the read buffer of the thread:
+ * the heap stays flat whatever the file size.
+ *
+ * @author jbrek
+ */
+public class FlickrUpload {
+
+	public final static String uploadURL = "https://up.flickr.com/services/upload/";
+	public final static int codeNoResponse = -999; // no response from Flickr (network down)
+	private final static int codeServiceUnavailable = 105; // HTTP error without Flickr answer
+	private final static int connectTimeoutMillis = 30000;
+	private final static String boundary = "---------------------------syno2flickr";
+	private final static Charset charset = Charset.forName("UTF-8");
+	private final static Pattern photoId = Pattern.compile("<photoid>\\s*([^<\\s]+)\\s*</photoid>");
+	private final static Pattern error = Pattern.compile("<err\\s+code=\"(-?\\d+)\"\\s+msg=\"([^\"]*)\"");
+
+	private final String url; /// Upload service
+	private final String apiKey; /// API key of the tool
+	private final String sharedSecret; /// Shared secret of the API key (signature)
+	private final String authToken; /// Token of the authenticated user
+
+	/**
+	 * Progress of the body sent
+	 */
+	public interface Listener {
+		void progress(long sent, long total);
+	}
+
+	/**
+	 * Error of an upload: Flickr error code, or codeNoResponse
+	 */
+	public static class UploadException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+		private final int code;
+
+		public UploadException(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+
+		public int getCode(){
+			return code;
+		}
+	}
+
+	public FlickrUpload(String apiKey, String sharedSecret, String authToken) {
+		this(uploadURL, apiKey, sharedSecret, authToken);
+	}
+
+	/**
+	 * @param url upload service
+	 * @param apiKey API key of the tool
+	 * @param sharedSecret shared secret of the API key
+	 * @param authToken token of the authenticated user
+	 */
+	public FlickrUpload(String url, String apiKey, String sharedSecret, String authToken) {
+		this.url = url;
+		this.apiKey = apiKey;
+		this.sharedSecret = sharedSecret;
+		this.authToken = authToken;
+	}
+
+	/**
+	 * Uploads of the authenticated user, with the API key of the properties
+	 *
+	 * @return null if jickr does not give the token of the user (uploads sent by jickr)
+	 */
+	public static FlickrUpload forUser(User user){
+		String token = authToken(user);
+		if(token==null)
+			return null;
+		try {
+			return new FlickrUpload(Syno2FlickrProperties.getInstance().getApiKey(), Syno2FlickrProperties.getInstance().getSharedSecret(), token);
+		} catch (Syno2FlickrException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Token of the authenticated user as stored by jickr (getToken or getAuthToken
+	 * of Auth, not available in all its versions)
+	 *
+	 * @return the token, null if not available
+	 */
+	private static String authToken(User user){
+		for(Method method : Auth.class.getMethods()){
+			if(!Modifier.isStatic(method.getModifiers()) || method.getReturnType()!=String.class ||
+			   !(method.getName().equals("getToken") || method.getName().equals("getAuthToken")))
+				continue;
+			Class<?>[] params = method.getParameterTypes();
+			try {
+				Object token = null;
+				if(params.length==0)
+					token = method.invoke(null);
+				else if(params.length==1 && params[0]==User.class)
+					token = method.invoke(null, user);
+				if(token!=null)
+					return (String) token;
+			} catch (Exception e) {
+				// not readable: next method
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Upload a file
+	 *
+	 * @param f file sent
+	 * @param isPublic visible by everyone
+	 * @param isFriend visible by friends
+	 * @param isFamily visible by family
+	 * @param listener progress of the sending (may be null)
+	 * @return id of the uploaded photo
+	 */
+	public String send(File f, boolean isPublic, boolean isFriend, boolean isFamily, Listener listener) throws UploadException {
+		Map<String, String> params = new TreeMap<String, String>();
+		params.put("api_key", apiKey);
+		params.put("auth_token", authToken);
+		params.put("is_public", isPublic ? "1" : "0");
+		params.put("is_friend", isFriend ? "1" : "0");
+		params.put("is_family", isFamily ? "1" : "0");
+		params.put("api_sig", signature(params));
+
+		// Multipart body: parameters, then the file part
+		StringBuilder head = new StringBuilder();
+		for(Map.Entry<String, String> param : params.entrySet())
+			head.append("--").append(boundary).append("\r\n")
+				.append("Content-Disposition: form-data; name=\"").append(param.getKey()).append("\"\r\n\r\n")
+				.append(param.getValue()).append("\r\n");
+		head.append("--").append(boundary).append("\r\n")
+			.append("Content-Disposition: form-data; name=\"photo\"; filename=\"").append(f.getName().replace("\"", "")).append("\"\r\n")
+			.append("Content-Type: application/octet-stream\r\n\r\n");
+		byte[] headBytes = head.toString().getBytes(charset);
+		byte[] tailBytes = ("\r\n--"+boundary+"--\r\n").getBytes(charset);
+
+		try {
+			FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+				connection.setConnectTimeout(connectTimeoutMillis);
+				connection.setDoOutput(true);
+				connection.setRequestMethod("POST");
+				connection.setRequestProperty("Content-Type", "multipart/form-data; boundary="+boundary);
+				connection.setFixedLengthStreamingMode(headBytes.length + size + tailBytes.length);
+
+				// Body sent as it is read (Content-Length known)
+				OutputStream out = connection.getOutputStream();
+				out.write(headBytes);
+				WritableByteChannel body = Channels.newChannel(out);
+				ByteBuffer buffer = FileUtils.readBuffer();
+				long sent = 0;
+				while(sent<size && channel.read(buffer)>=0){
+					buffer.flip();
+					while(buffer.hasRemaining())
+						sent += body.write(buffer);
+					buffer.clear();
+					if(listener!=null)
+						listener.progress(sent, size);
+				}
+				if(sent<size)
+					throw new IOException("file "+f.getName()+" truncated while sent");
+				out.write(tailBytes);
+				out.close();
+
+				return answer(connection);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			throw new UploadException(codeNoResponse, e.getMessage());
+		}
+	}
+
+	/**
+	 * Id of the uploaded photo from the answer of Flickr
+	 */
+	private String answer(HttpURLConnection connection) throws IOException, UploadException {
+		int status = connection.getResponseCode();
+		InputStream in = status<400 ? connection.getInputStream() : connection.getErrorStream();
+		String rsp = "";
+		if(in!=null){
+			Scanner scanner = new Scanner(in, charset.name()).useDelimiter("\\A");
+			try {
+				rsp = scanner.hasNext() ? scanner.next() : "";
+			} finally {
+				scanner.close();
+			}
+		}
+		Matcher id = photoId.matcher(rsp);
+		if(id.find())
+			return id.group(1);
+		Matcher err = error.matcher(rsp);
+		if(err.find())
+			throw new UploadException(Integer.parseInt(err.group(1)), err.group(2));
+		throw new UploadException(codeServiceUnavailable, "HTTP "+status+" "+connection.getResponseMessage());
+	}
+
+	/**
+	 * Signature of the parameters: MD5 of the secret followed by the sorted names and values
+	 */
+	private String signature(Map<String, String> sorted){
+		StringBuilder signed = new StringBuilder(sharedSecret);
+		for(Map.Entry<String, String> param : sorted.entrySet())
+			signed.append(param.getKey()).append(param.getValue());
+		try {
+			byte[] md5 = MessageDigest.getInstance("MD5").digest(signed.toString().getBytes(charset));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : md5)
+				hex.append(String.format("%02x", b & 0xff));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
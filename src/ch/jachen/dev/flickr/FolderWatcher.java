@@ -0,0 +1,225 @@
+package ch.jachen.dev.flickr;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import ch.jachen.dev.util.Node;
+import ch.jachen.dev.util.Tree;
+
+/**
+ * Watch mode
+ *
+ * Watches the sync folder and its subdirectories (up to syncFolderMaxDepth) and
+ * submits new files to the upload pipeline once they are no longer being written:
+ * size and modification time unchanged for watchDebounceSeconds.
+ *
+ * @author jbrek
+ */
+public class FolderWatcher {
+
+	private final Tree tree; /// Tree of the sync folder (nodes of new files)
+	private final Path root; /// Sync folder
+	private final int maxDepth; /// Maximum depth of watched directories
+	private final Collection<File> excludes; /// Excluded folders (archive, error)
+	private final long debounceMillis; /// Delay without change before a file is uploaded
+	private final UploadPipeline pipeline;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private final Map<Path, PendingFile> pending = new LinkedHashMap<Path, PendingFile>();
+	private final Set<Path> submitted = new HashSet<Path>(); /// Files submitted while watching (until deleted or archived)
+	private boolean registering; /// Files already known are ignored while registering (initial scan, or events lost)
+	private volatile boolean running = true;
+
+	/**
+	 * Watch the sync folder
+	 * Files already present but not in the tree (arrived after the scan) are submitted too, once stable.
+	 *
+	 * @throws IOException if the folder cannot be watched
+	 */
+	public FolderWatcher(Tree tree, int maxDepth, Collection<File> excludes, int debounceSeconds, UploadPipeline pipeline) throws IOException {
+		this.tree = tree;
+		this.root = tree.getFolder().toPath();
+		this.maxDepth = maxDepth;
+		this.excludes = excludes;
+		this.debounceMillis = TimeUnit.SECONDS.toMillis(debounceSeconds);
+		this.pipeline = pipeline;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.registering = true;
+		register(root, 0);
+		this.registering = false;
+	}
+
+	/**
+	 * Watch until stopped (or upload cancelled)
+	 */
+	public void run(){
+		try {
+			while(running && !pipeline.isCancelled()){
+				WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+				if(key!=null)
+					processEvents(key);
+				submitStableFiles();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				watchService.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Stop watching
+	 */
+	public void stop(){
+		running = false;
+	}
+
+	/**
+	 * Watch a directory and its subdirectories, files already present are pending
+	 */
+	private void register(Path dir, int depth){
+		if(depth>maxDepth || (depth>0 && isExcluded(dir)))
+			return;
+		try {
+			keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+			DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+			try {
+				for(Path child : stream){
+					if(Files.isDirectory(child))
+						register(child, depth+1);
+					else if(!isExcluded(child))
+						touch(child);
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Warning: cannot watch folder "+dir+"\n"+e.getMessage());
+		}
+	}
+
+	private void processEvents(WatchKey key){
+		Path dir = keys.get(key);
+		for(WatchEvent<?> event : key.pollEvents()){
+			// Events lost: register the folders again, only the files not known yet are pending
+			if(event.kind()==OVERFLOW){
+				registering = true;
+				register(root, 0);
+				registering = false;
+				continue;
+			}
+			if(dir==null)
+				continue;
+			Path child = dir.resolve((Path) event.context());
+			if(event.kind()==ENTRY_DELETE){
+				pending.remove(child);
+				submitted.remove(child);
+			} else if(!isExcluded(child)){
+				if(Files.isDirectory(child)){
+					if(event.kind()==ENTRY_CREATE)
+						register(child, root.relativize(child).getNameCount());
+				} else
+					touch(child);
+			}
+		}
+		if(!key.reset())
+			keys.remove(key);
+	}
+
+	/**
+	 * File created or being written
+	 * While registering, a file of the scan or already submitted is ignored.
+	 */
+	private void touch(Path file){
+		if(registering && (tree.getSnapshot().contains(file.toFile()) || submitted.contains(file)))
+			return;
+		if(!pending.containsKey(file))
+			pending.put(file, new PendingFile());
+	}
+
+	/**
+	 * Submit the files unchanged since debounce delay
+	 */
+	private void submitStableFiles(){
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Path, PendingFile>> it = pending.entrySet().iterator();
+		while(it.hasNext() && running){
+			Map.Entry<Path, PendingFile> entry = it.next();
+			PendingFile p = entry.getValue();
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(entry.getKey(), BasicFileAttributes.class);
+			} catch (IOException e) {
+				it.remove(); // deleted or moved
+				continue;
+			}
+			if(!attrs.isRegularFile()){
+				it.remove();
+				continue;
+			}
+
+			// Still being written
+			long lastModified = attrs.lastModifiedTime().toMillis();
+			if(attrs.size()!=p.size || lastModified!=p.lastModified){
+				p.size = attrs.size();
+				p.lastModified = lastModified;
+				p.since = now;
+				continue;
+			}
+			if(now - p.since < debounceMillis)
+				continue;
+
+			it.remove();
+			File f = entry.getKey().toFile();
+			Node node = tree.nodeOf(f, p.size, p.lastModified);
+			if(node!=null && !pipeline.isSubmitted(f)){
+				pipeline.addFilesFound(1);
+				pipeline.submit(node);
+				submitted.add(entry.getKey());
+			}
+		}
+	}
+
+	private boolean isExcluded(Path path){
+		String name = path.getFileName().toString();
+		if(name.startsWith(".") || name.startsWith("@") || excludes.contains(path.toFile()))
+			return true;
+		try {
+			return Files.isHidden(path);
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * File waiting to be stable
+	 */
+	private static class PendingFile {
+		private long size = -1;
+		private long lastModified = -1;
+		private long since = 0;
+	}
+}
@@ -0,0 +1,219 @@
+package ch.jachen.dev.flickr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import ch.jachen.dev.util.FileUtils;
+
+/**
+ * Content hash index
+ *
+ * Maps the SHA-256 of the files already uploaded to their photo id, so that
+ * a copy of a file already on Flickr (same content, any name) is not uploaded again.
+ * The hash of a file is cached by path, size and modification time: an unchanged
+ * file is not read twice. The index is stored next to the properties file.
+ *
+ * @author jbrek
+ */
+public class HashIndex {
+
+	private final static Charset charset = Charset.forName("UTF-8");
+
+	private final File indexFile;
+	private final Map<String, String> photoIds = new HashMap<String, String>(); /// Photo id by content hash
+	private final Map<String, CachedHash> hashes = new HashMap<String, CachedHash>(); /// Hash by file path
+	private Writer writer;
+
+	/**
+	 * Open the index
+	 *
+	 * @param indexFile index file (created if needed)
+	 * @throws IOException if the index cannot be read or written
+	 */
+	public HashIndex(File indexFile) throws IOException {
+		this.indexFile = indexFile;
+		load();
+		save();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), charset));
+	}
+
+	/**
+	 * Get the content hash of a file (read only if the file changed since last hash)
+	 *
+	 * @param f file to hash
+	 * @return SHA-256 of the content (hexadecimal)
+	 * @throws IOException if the file cannot be read
+	 */
+	public String hash(File f) throws IOException {
+		long size = f.length();
+		long lastModified = f.lastModified();
+		String hash = getCachedHash(f);
+		if(hash!=null)
+			return hash;
+		hash = sha256(f);
+		synchronized (this) {
+			hashes.put(f.getAbsolutePath(), new CachedHash(hash, size, lastModified));
+		}
+		return hash;
+	}
+
+	/**
+	 * Get the content hash of a file without reading it
+	 *
+	 * @param f file
+	 * @return SHA-256 of the content, null if the file was not hashed yet or changed since
+	 */
+	public synchronized String getCachedHash(File f){
+		CachedHash cached = hashes.get(f.getAbsolutePath());
+		if(cached!=null && cached.size==f.length() && cached.lastModified==f.lastModified())
+			return cached.hash;
+		return null;
+	}
+
+	/**
+	 * Get the photo id of an uploaded content
+	 *
+	 * @param hash content hash
+	 * @return the photo id, null if not uploaded yet
+	 */
+	public synchronized String getPhotoId(String hash){
+		return photoIds.get(hash);
+	}
+
+	/**
+	 * Record the photo id of an uploaded content
+	 *
+	 * @param hash content hash
+	 * @param photoId photo id
+	 */
+	public synchronized void put(String hash, String photoId){
+		photoIds.put(hash, photoId);
+		if(writer==null)
+			return;
+		try {
+			writer.write("P\t"+hash+"\t"+photoId+"\n");
+			writer.flush();
+		} catch (IOException e) {
+			System.out.println("Warning: cannot write hash index "+indexFile.getPath()+".\n"+e.getMessage());
+		}
+	}
+
+	/**
+	 * Forget a photo (deleted on Flickr): its contents are uploaded again
+	 *
+	 * @param photoId photo id
+	 */
+	public synchronized void removePhoto(String photoId){
+		Iterator<Map.Entry<String, String>> it = photoIds.entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<String, String> e = it.next();
+			if(!e.getValue().equals(photoId))
+				continue;
+			it.remove();
+			if(writer==null)
+				continue;
+			try {
+				writer.write("R\t"+e.getKey()+"\n");
+				writer.flush();
+			} catch (IOException ex) {
+				System.out.println("Warning: cannot write hash index "+indexFile.getPath()+".\n"+ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Save the hash cache and close the index
+	 */
+	public synchronized void close(){
+		try {
+			if(writer!=null)
+				writer.close();
+			writer = null;
+			save();
+		} catch (IOException e) {
+			System.out.println("Warning: cannot write hash index "+indexFile.getPath()+".\n"+e.getMessage());
+		}
+	}
+
+	/**
+	 * SHA-256 of the file in hexadecimal
+	 */
+	private static String sha256(File f) throws IOException {
+		StringBuilder sb = new StringBuilder(64);
+		for(byte b : FileUtils.sha256(f))
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	/**
+	 * Read the index (photo ids and hash cache of files)
+	 */
+	private void load() throws IOException {
+		if(!indexFile.exists())
+			return;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), charset));
+		try {
+			String line;
+			while((line = reader.readLine())!=null){
+				String[] fields = line.split("\t", 5);
+				try {
+					if(fields.length==3 && "P".equals(fields[0]))
+						photoIds.put(fields[1], fields[2]);
+					else if(fields.length==2 && "R".equals(fields[0]))
+						photoIds.remove(fields[1]);
+					else if(fields.length==5 && "F".equals(fields[0]) && new File(fields[4]).exists())
+						hashes.put(fields[4], new CachedHash(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				} catch (NumberFormatException e) {}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Rewrite the index (cached hashes of files no longer present are dropped)
+	 */
+	private void save() throws IOException {
+		File tmp = new File(indexFile.getPath()+".tmp");
+		Writer tmpWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), charset));
+		try {
+			for(Map.Entry<String, String> e : photoIds.entrySet())
+				tmpWriter.write("P\t"+e.getKey()+"\t"+e.getValue()+"\n");
+			for(Map.Entry<String, CachedHash> e : hashes.entrySet())
+				if(new File(e.getKey()).exists())
+					tmpWriter.write("F\t"+e.getValue().size+"\t"+e.getValue().lastModified+"\t"+e.getValue().hash+"\t"+e.getKey()+"\n");
+		} finally {
+			tmpWriter.close();
+		}
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Hash of a file at a given size and modification time
+	 */
+	private static class CachedHash {
+
+		private final String hash;
+		private final long size;
+		private final long lastModified;
+
+		CachedHash(String hash, long size, long lastModified){
+			this.hash = hash;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
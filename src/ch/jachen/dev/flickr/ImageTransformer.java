@@ -0,0 +1,317 @@
+package ch.jachen.dev.flickr;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Image transformation before upload
+ *
+ * JPEG and PNG images over a number of pixels are resized, and images over a
+ * size (or over the Flickr size limit) are recompressed as JPEG, to send fewer
+ * bytes. The EXIF data of a JPEG are kept. Large images are subsampled while
+ * read, so that the full resolution is never decoded, and no image is decoded
+ * over the memory budget: an image only recompressed whose decoding would not
+ * fit is sent as it is (subsampled if over the Flickr limit). A transformed
+ * image is written to a temporary folder, and only kept if smaller than the original.
+ *
+ * @author jbrek
+ */
+public class ImageTransformer {
+
+	private final static int bytesPerPixel = 4; // decoded image (worst case)
+
+	private final long recompressOverBytes; /// Long.MAX_VALUE: never
+	private final long resizeOverPixels; /// 0: never
+	private final float quality; /// JPEG quality (0..1)
+	private final long maxBytes; /// Flickr size limit of images
+	private final File tempFolder;
+	private final AtomicLong count = new AtomicLong(0);
+	private final Semaphore memory; /// Heap (KB) for the images decoded at the same time
+	private final int memoryBudgetKB;
+
+	/**
+	 * Transformer writing to a new temporary folder
+	 *
+	 * @param recompressOverBytes images over this size are recompressed (0: never)
+	 * @param resizeOverPixels images over this number of pixels are resized to it (0: never)
+	 * @param quality JPEG quality (0..1)
+	 * @param maxBytes Flickr size limit of images (larger images are recompressed)
+	 * @throws IOException if the temporary folder cannot be created
+	 */
+	public ImageTransformer(long recompressOverBytes, long resizeOverPixels, float quality, long maxBytes) throws IOException {
+		this.recompressOverBytes = recompressOverBytes>0 ? recompressOverBytes : Long.MAX_VALUE;
+		this.resizeOverPixels = resizeOverPixels;
+		this.quality = quality;
+		this.maxBytes = maxBytes;
+		this.tempFolder = Files.createTempDirectory("syno2flickr").toFile();
+
+		// Decoded images must fit in a quarter of the heap (a larger image is decoded alone)
+		this.memoryBudgetKB = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory()/4/1024);
+		this.memory = new Semaphore(memoryBudgetKB, true);
+	}
+
+	/**
+	 * May the file be transformed (JPEG or PNG; its pixels are only known once read)
+	 */
+	public boolean accepts(File f){
+		if(formatOf(f)==null)
+			return false;
+		return resizeOverPixels>0 || f.length()>recompressOverBytes || f.length()>maxBytes;
+	}
+
+	/**
+	 * Size of an image once transformed, estimated from its dimensions (read in its
+	 * header): in proportion of its pixels if resized, at most the Flickr size limit
+	 * if over it (recompressed or resized, it may still be over and then skipped)
+	 *
+	 * @return estimated size, size of the file if it is not transformed
+	 */
+	public long estimateSize(File f){
+		long size = f.length();
+		if(!accepts(f))
+			return size;
+		long pixels = pixels(f);
+		if(resizeOverPixels>0 && pixels>resizeOverPixels)
+			size = (long) (size * ((double) resizeOverPixels / pixels));
+		return pixels>0 ? Math.min(size, maxBytes) : size;
+	}
+
+	/**
+	 * Transform an image
+	 *
+	 * @param f image
+	 * @return the transformed image (temporary file, see release), null if not transformed
+	 * (below the limits, not readable by ImageIO, or not smaller)
+	 * @throws IOException if the image cannot be read or written
+	 */
+	public File transform(File f) throws IOException {
+		String format = formatOf(f);
+		if(format==null)
+			return null;
+		ImageInputStream in = ImageIO.createImageInputStream(f);
+		if(in==null)
+			return null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if(!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, false);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				long pixels = (long) width * height;
+				boolean resize = resizeOverPixels>0 && pixels>resizeOverPixels;
+				if(!resize && f.length()<=recompressOverBytes && f.length()<=maxBytes)
+					return null;
+
+				// Decode at least twice the target size (every n-th pixel), then scale smoothly
+				int step = 1;
+				if(resize)
+					step = Math.max(1, (int) Math.floor(Math.sqrt((double) pixels / resizeOverPixels) / 2));
+
+				// Decoded image within the memory budget: subsampled more, or the original is sent
+				// (an image only recompressed keeps its resolution unless it is over the Flickr limit)
+				while(decodedKB(width, height, step) > memoryBudgetKB){
+					if(!resize && f.length()<=maxBytes)
+						return null;
+					step++;
+				}
+				ImageReadParam param = reader.getDefaultReadParam();
+				if(step>1)
+					param.setSourceSubsampling(step, step, 0, 0);
+				int memoryKB = (int) decodedKB(width, height, step);
+				memory.acquireUninterruptibly(memoryKB);
+				try {
+					// EXIF data are kept in the metadata of a JPEG (APP1 marker)
+					IIOMetadata metadata = "jpeg".equals(format) ? reader.getImageMetadata(0) : null;
+					BufferedImage image = reader.read(0, param);
+					if(resize && (long) image.getWidth()*image.getHeight() > resizeOverPixels)
+						image = scale(image, resizeOverPixels);
+					if(metadata==null)
+						image = toRgb(image);
+					File out = tempFile(f);
+					boolean kept = false;
+					try {
+						write(image, metadata, out);
+						kept = out.length()<f.length();
+						return kept ? out : null;
+					} finally {
+						if(!kept)
+							release(out);
+					}
+				} finally {
+					memory.release(memoryKB);
+				}
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Heap (KB) to decode an image read every step pixels (decoded image and its scaled copy)
+	 */
+	private static long decodedKB(int width, int height, int step){
+		long decodedPixels = (long) ((width+step-1)/step) * ((height+step-1)/step);
+		return decodedPixels*bytesPerPixel*2/1024 + 1;
+	}
+
+	/**
+	 * Number of pixels of an image (read in its header), -1 if unknown
+	 */
+	private static long pixels(File f){
+		try {
+			ImageInputStream in = ImageIO.createImageInputStream(f);
+			if(in==null)
+				return -1;
+			try {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+				if(!readers.hasNext())
+					return -1;
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(in, true, true);
+					return (long) reader.getWidth(0) * reader.getHeight(0);
+				} finally {
+					reader.dispose();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Delete a transformed image once sent
+	 */
+	public void release(File transformed){
+		if(transformed==null)
+			return;
+		transformed.delete();
+		transformed.getParentFile().delete();
+	}
+
+	/**
+	 * Delete the temporary folder
+	 */
+	public void close(){
+		File[] files = tempFolder.listFiles();
+		if(files!=null)
+			for(File folder : files){
+				File[] images = folder.listFiles();
+				if(images!=null)
+					for(File image : images)
+						image.delete();
+				folder.delete();
+			}
+		tempFolder.delete();
+	}
+
+	/**
+	 * Format of an image (jpeg or png), null if not transformed
+	 */
+	private static String formatOf(File f){
+		String name = f.getName().toLowerCase(Locale.ENGLISH);
+		if(name.endsWith(".jpg") || name.endsWith(".jpeg"))
+			return "jpeg";
+		if(name.endsWith(".png"))
+			return "png";
+		return null;
+	}
+
+	/**
+	 * Temporary file of a transformed image: same name (.jpg for a PNG), one folder per image
+	 */
+	private File tempFile(File f) throws IOException {
+		File folder = new File(tempFolder, String.valueOf(count.incrementAndGet()));
+		if(!folder.mkdir())
+			throw new IOException("cannot create "+folder.getPath());
+		String name = f.getName();
+		if("png".equals(formatOf(f)))
+			name = name.substring(0, name.lastIndexOf('.'))+".jpg";
+		return new File(folder, name);
+	}
+
+	/**
+	 * Scale an image down to a number of pixels (halved as long as possible, for a smooth result)
+	 */
+	private static BufferedImage scale(BufferedImage image, long maxPixels){
+		double ratio = Math.sqrt((double) maxPixels / ((long) image.getWidth() * image.getHeight()));
+		int width = Math.max(1, (int) (image.getWidth() * ratio));
+		int height = Math.max(1, (int) (image.getHeight() * ratio));
+		int type = image.getType()==BufferedImage.TYPE_BYTE_GRAY ? BufferedImage.TYPE_BYTE_GRAY :
+				   image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage scaled = image;
+		do {
+			int w = Math.max(width, scaled.getWidth()/2);
+			int h = Math.max(height, scaled.getHeight()/2);
+			BufferedImage next = new BufferedImage(w, h, type);
+			Graphics2D g = next.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(scaled, 0, 0, w, h, null);
+			g.dispose();
+			scaled = next;
+		} while(scaled.getWidth()>width || scaled.getHeight()>height);
+		return scaled;
+	}
+
+	/**
+	 * Image without transparency (drawn on white), for a JPEG
+	 */
+	private static BufferedImage toRgb(BufferedImage image){
+		if(!image.getColorModel().hasAlpha() && image.getType()!=BufferedImage.TYPE_BYTE_INDEXED && image.getType()!=BufferedImage.TYPE_BYTE_BINARY)
+			return image;
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return rgb;
+	}
+
+	/**
+	 * Write a JPEG (with the metadata of the original if any)
+	 */
+	private void write(BufferedImage image, IIOMetadata metadata, File out) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageOutputStream output = ImageIO.createImageOutputStream(out);
+		try {
+			writer.setOutput(output);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			writer.write(null, new IIOImage(image, null, metadata), param);
+		} finally {
+			writer.dispose();
+			output.close();
+		}
+	}
+}
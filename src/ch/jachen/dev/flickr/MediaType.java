@@ -0,0 +1,141 @@
+package ch.jachen.dev.flickr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.jachen.dev.util.Node;
+
+/**
+ * Kind of a file to upload: photo, video or other (not sent)
+ *
+ * Known extensions are classified without reading the file; the first bytes of
+ * a file with an unknown extension are read to recognize its format, and the
+ * kind found is kept for the next files of that extension. The kind of a node
+ * is kept on the node, so that it is only worked out once per file.
+ *
+ * @author jbrek
+ */
+public enum MediaType {
+
+	IMAGE, VIDEO, OTHER;
+
+	private final static int headerSize = 16; // bytes read to recognize a format
+	private final static int maxSniffedExtensions = 64; // unknown extensions remembered
+	private final static MediaType[] types = values();
+
+	private final static Map<String, MediaType> extensions = new ConcurrentHashMap<String, MediaType>(); /// Kind by extension (lower case)
+	static {
+		for(String ext : new String[] { "jpg", "jpeg", "jpe", "png", "gif", "tif", "tiff", "bmp", "heic", "heif", "webp" })
+			extensions.put(ext, IMAGE);
+		for(String ext : new String[] { "avi", "wmv", "mov", "qt", "mpeg", "mpg", "mpe", "3gp", "3g2", "m2ts", "mts", "ts",
+										"ogg", "ogv", "mp4", "m4v", "mkv", "webm", "flv", "asf", "dv", "vob" })
+			extensions.put(ext, VIDEO);
+		for(String ext : new String[] { "xmp", "db", "thm", "ini", "txt", "xml", "json", "pp3", "dop", "aae", "lrv",
+										"ds_store", "tmp", "part", "log", "pdf", "doc", "zip" })
+			extensions.put(ext, OTHER);
+	}
+	private final static ConcurrentMap<String, MediaType> sniffed = new ConcurrentHashMap<String, MediaType>(); /// Kind by unknown extension (first file read)
+
+	/**
+	 * Kind of the file of a node (worked out once, then kept on the node)
+	 * @param node node of a file
+	 * @return kind of the file (OTHER if not recognized)
+	 */
+	public static MediaType of(Node node){
+		byte kind = node.getKind();
+		if(kind>0)
+			return types[kind-1];
+		MediaType type = of(node.getFile());
+		node.setKind((byte) (type.ordinal()+1));
+		return type;
+	}
+
+	/**
+	 * Kind of a file
+	 * @param f file
+	 * @return kind of the file (OTHER if not recognized)
+	 */
+	public static MediaType of(File f){
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		String ext = null;
+		if(dot>=0){
+			ext = name.substring(dot+1).toLowerCase(Locale.ENGLISH);
+			MediaType type = extensions.get(ext);
+			if(type==null)
+				type = sniffed.get(ext);
+			if(type!=null)
+				return type;
+		}
+
+		byte[] h = new byte[headerSize];
+		int n = read(f, h);
+		MediaType type = sniff(h, n);
+		// Kind of the extension: from a complete header only (not an empty or partial file)
+		if(ext!=null && n==headerSize && sniffed.size()<maxSniffedExtensions)
+			sniffed.putIfAbsent(ext, type);
+		return type;
+	}
+
+	/**
+	 * Read the first bytes of a file
+	 * @return number of bytes read (0 if the file cannot be read)
+	 */
+	private static int read(File f, byte[] h){
+		int n = 0;
+		try {
+			InputStream in = new FileInputStream(f);
+			try {
+				int r;
+				while(n<h.length && (r = in.read(h, n, h.length-n))>0)
+					n += r;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return 0;
+		}
+		return n;
+	}
+
+	/**
+	 * Recognize the format from the first bytes of the file
+	 */
+	private static MediaType sniff(byte[] h, int n){
+		if(n<4)
+			return OTHER;
+
+		// Images: JPEG, PNG, GIF, TIFF, BMP
+		if(is(h, 0, 0xFF, 0xD8, 0xFF) || is(h, 0, 0x89, 'P', 'N', 'G') || is(h, 0, 'G', 'I', 'F', '8') ||
+				is(h, 0, 'I', 'I', 0x2A, 0x00) || is(h, 0, 'M', 'M', 0x00, 0x2A) || is(h, 0, 'B', 'M'))
+			return IMAGE;
+		if(n>=12){
+			// ISO base media (MP4, MOV, 3GP, HEIC)
+			if(is(h, 4, 'f', 't', 'y', 'p'))
+				return is(h, 8, 'h', 'e', 'i', 'c') || is(h, 8, 'h', 'e', 'i', 'x') || is(h, 8, 'm', 'i', 'f', '1') ? IMAGE : VIDEO;
+			if(is(h, 4, 'm', 'o', 'o', 'v') || is(h, 4, 'm', 'd', 'a', 't') || is(h, 4, 'w', 'i', 'd', 'e'))
+				return VIDEO;
+			// RIFF (AVI, WebP)
+			if(is(h, 0, 'R', 'I', 'F', 'F'))
+				return is(h, 8, 'W', 'E', 'B', 'P') ? IMAGE : is(h, 8, 'A', 'V', 'I', ' ') ? VIDEO : OTHER;
+		}
+		// Videos: Matroska/WebM, MPEG-PS, ASF/WMV, Ogg, FLV
+		if(is(h, 0, 0x1A, 0x45, 0xDF, 0xA3) || is(h, 0, 0x00, 0x00, 0x01, 0xBA) || is(h, 0, 0x00, 0x00, 0x01, 0xB3) ||
+				is(h, 0, 0x30, 0x26, 0xB2, 0x75) || is(h, 0, 'O', 'g', 'g', 'S') || is(h, 0, 'F', 'L', 'V'))
+			return VIDEO;
+		return OTHER;
+	}
+
+	private static boolean is(byte[] header, int offset, int... bytes){
+		for(int i=0; i<bytes.length; i++)
+			if((header[offset+i] & 0xFF) != bytes[i])
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,345 @@
+package ch.jachen.dev.flickr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jickr.FlickrException;
+
+import ch.jachen.dev.util.Metrics;
+import ch.jachen.dev.util.Node;
+
+/**
+ * Metadata stage of the upload pipeline
+ *
+ * Runs the small API calls following an upload (license, default set, set and
+ * collections) on its own worker, so that the upload workers go on sending bytes.
+ * Photos uploaded close together are handled in batches: each set is looked up
+ * once per batch and its collections linked once, and the sets are filled in
+ * parallel (the photos of a set are added in parallel by PhotoOrganizer).
+ * A failed step is retried later without uploading the file again; steps already
+ * done are not repeated. A copy only linked to a photo already uploaded is first
+ * checked: a photo deleted on Flickr is reported as missing.
+ *
+ * @author jbrek
+ */
+public class MetadataStage {
+
+	private final static int maxAttempts = 3; // attempts before giving up a photo
+	private final static long retryDelaySeconds = 10; // delay before the first retry (doubled each time)
+	private final static long batchDelayMillis = 2000; // delay to gather the photos of a batch
+	private final static int setConcurrency = 4; // sets filled at the same time
+
+	private final PhotoOrganizer organizer;
+	private final ScheduledExecutorService executor;
+	private final ExecutorService setExecutor;
+	private final List<MetadataJob> failedJobs = Collections.synchronizedList(new ArrayList<MetadataJob>());
+	private final List<MetadataJob> batch = new ArrayList<MetadataJob>(); /// Jobs of the next batch (guarded by batch)
+	private boolean flushScheduled = false; /// Next batch scheduled (guarded by batch)
+	private int pending = 0; // jobs not finished yet (guarded by this)
+
+	public MetadataStage(PhotoOrganizer organizer) {
+		this.organizer = organizer;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "metadata");
+			}
+		});
+		this.setExecutor = Executors.newFixedThreadPool(setConcurrency, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "metadata-set");
+			}
+		});
+	}
+
+	/**
+	 * Called once the metadata of a photo are done or given up
+	 */
+	public interface Callback {
+		void done(Node node, String photoId, boolean complete);
+
+		/**
+		 * Photo of a copy only linked (see submit) not found on Flickr: nothing done
+		 */
+		void missing(Node node, String photoId);
+	}
+
+	/**
+	 * Queue the metadata of an uploaded photo
+	 *
+	 * @param node node of the uploaded file
+	 * @param photoId id of the uploaded photo
+	 * @param whenDone called once all steps are done or given up (may be null)
+	 */
+	public void submit(Node node, String photoId, Callback whenDone){
+		submit(node, photoId, false, whenDone);
+	}
+
+	/**
+	 * Queue the metadata of an uploaded photo
+	 *
+	 * @param node node of the uploaded file
+	 * @param photoId id of the uploaded photo
+	 * @param linkOnly only link the photo to its sets (copy of a photo already uploaded)
+	 * @param whenDone called once all steps are done or given up (may be null)
+	 */
+	public void submit(Node node, String photoId, boolean linkOnly, Callback whenDone){
+		synchronized (this) {
+			pending++;
+		}
+		MetadataJob job = new MetadataJob(node, photoId, whenDone);
+		job.licenseDone = linkOnly;
+		job.checked = !linkOnly;
+		enqueue(job);
+	}
+
+	/**
+	 * Add a job to the next batch
+	 */
+	private void enqueue(MetadataJob job){
+		synchronized (batch) {
+			batch.add(job);
+			if(flushScheduled)
+				return;
+			flushScheduled = true;
+		}
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, batchDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Wait until the metadata of all submitted photos are done or given up
+	 * and show the photos whose metadata are incomplete
+	 */
+	public void awaitTermination(){
+		try {
+			synchronized (this) {
+				while(pending>0)
+					wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+		setExecutor.shutdownNow();
+		organizer.close();
+
+		synchronized (failedJobs) {
+			if(!failedJobs.isEmpty()){
+				System.out.println("\nWarning: license, set or collection could not be set for "+failedJobs.size()+" photo"+(failedJobs.size()>1?"s":"")+":");
+				for(MetadataJob job : failedJobs)
+					System.out.println("\t"+job.node.getFile().getName()+" (id: "+job.photoId+")");
+			}
+		}
+	}
+
+	private synchronized void finished(){
+		pending--;
+		notifyAll();
+	}
+
+	/**
+	 * Run the steps of the jobs of the batch
+	 * License is set photo by photo, then the photos are grouped by set.
+	 */
+	private void flush(){
+		List<MetadataJob> jobs;
+		synchronized (batch) {
+			jobs = new ArrayList<MetadataJob>(batch);
+			batch.clear();
+			flushScheduled = false;
+		}
+
+		List<MetadataJob> defaultSetJobs = new ArrayList<MetadataJob>();
+		Map<String, List<MetadataJob>> setJobs = new LinkedHashMap<String, List<MetadataJob>>();
+		for(MetadataJob job : jobs){
+			job.attempts++;
+			try {
+				if(!job.checked){
+					try {
+						job.missing = !organizer.exists(job.photoId);
+						job.checked = true;
+					} catch (FlickrException e) {
+						System.out.println("Error while checking photo (id: "+job.photoId+").\n"+e.getMessage());
+					}
+					if(!job.checked || job.missing)
+						continue;
+				}
+				if(!job.licenseDone)
+					job.licenseDone = organizer.updateLicense(job.node, job.photoId);
+				if(!job.defaultSetDone)
+					defaultSetJobs.add(job);
+				if(!job.setDone || !job.collectionsDone){
+					String setName = organizer.getSetName(job.node);
+					if(setName==null){
+						job.setDone = true;
+						job.collectionsDone = true;
+					} else {
+						List<MetadataJob> set = setJobs.get(setName);
+						if(set==null)
+							setJobs.put(setName, set = new ArrayList<MetadataJob>());
+						set.add(job);
+					}
+				}
+			} catch (RuntimeException e) {
+				job.failed(e);
+			}
+		}
+
+		// Default set, then sets in parallel
+		try {
+			if(!defaultSetJobs.isEmpty()){
+				Set<String> done = organizer.addToDefaultSet(nodes(defaultSetJobs));
+				for(MetadataJob job : defaultSetJobs)
+					job.defaultSetDone = done.contains(job.photoId);
+			}
+		} catch (RuntimeException e) {
+			for(MetadataJob job : defaultSetJobs)
+				job.failed(e);
+		}
+		List<Callable<Void>> setTasks = new ArrayList<Callable<Void>>();
+		for(final Map.Entry<String, List<MetadataJob>> set : setJobs.entrySet())
+			setTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					fillSet(set.getKey(), set.getValue());
+					return null;
+				}
+			});
+		try {
+			setExecutor.invokeAll(setTasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for(MetadataJob job : jobs)
+			job.next();
+	}
+
+	/**
+	 * Add the photos of a batch to their set, then the set to its collections
+	 */
+	private void fillSet(String setName, List<MetadataJob> jobs){
+		try {
+			List<MetadataJob> toAdd = new ArrayList<MetadataJob>();
+			for(MetadataJob job : jobs)
+				if(!job.setDone)
+					toAdd.add(job);
+			if(!toAdd.isEmpty()){
+				Set<String> done = organizer.addToSet(setName, nodes(toAdd));
+				for(MetadataJob job : toAdd)
+					job.setDone = done.contains(job.photoId);
+			}
+
+			// Collections once per folder of the set
+			Map<Node, Boolean> folders = new HashMap<Node, Boolean>();
+			for(MetadataJob job : jobs){
+				if(!job.setDone || job.collectionsDone)
+					continue;
+				Boolean done = folders.get(job.node.getParent());
+				if(done==null)
+					folders.put(job.node.getParent(), done = organizer.addSetToCollections(job.node));
+				job.collectionsDone = done;
+			}
+		} catch (RuntimeException e) {
+			for(MetadataJob job : jobs)
+				job.failed(e);
+		}
+	}
+
+	/**
+	 * Photos of the jobs (id, node), a photo linked to several files only once
+	 */
+	private static Map<String, Node> nodes(List<MetadataJob> jobs){
+		Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+		for(MetadataJob job : jobs)
+			if(!nodes.containsKey(job.photoId))
+				nodes.put(job.photoId, job.node);
+		return nodes;
+	}
+
+	/**
+	 * Metadata of one uploaded photo
+	 */
+	private class MetadataJob {
+
+		private final Node node;
+		private final String photoId;
+		private final Callback whenDone;
+		private boolean licenseDone=false;
+		private boolean defaultSetDone=false;
+		private boolean setDone=false;
+		private boolean collectionsDone=false;
+		private boolean checked=true; /// Photo known to exist (copy only linked: checked first)
+		private boolean missing=false; /// Photo not found on Flickr
+		private int attempts=0;
+
+		MetadataJob(Node node, String photoId, Callback whenDone){
+			this.node = node;
+			this.photoId = photoId;
+			this.whenDone = whenDone;
+		}
+
+		/**
+		 * Unexpected error: given up
+		 */
+		void failed(RuntimeException e){
+			if(attempts<maxAttempts)
+				System.out.println("Error while organizing photo "+node.getFile().getName()+" (id: "+photoId+")\n"+e.getMessage());
+			attempts = maxAttempts;
+		}
+
+		/**
+		 * Batch done: finished, or retried by a later batch
+		 */
+		void next(){
+			if(isComplete() || missing){
+				finish();
+			} else if(attempts < maxAttempts){
+				long delay = retryDelaySeconds << (attempts-1);
+				Metrics.getInstance().counter("metadata_retries_total").incrementAndGet();
+				System.out.println("Metadata of photo "+node.getFile().getName()+" (id: "+photoId+") will be retried in "+delay+" seconds.");
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						enqueue(MetadataJob.this);
+					}
+				}, delay, TimeUnit.SECONDS);
+			} else {
+				failedJobs.add(this);
+				finish();
+			}
+		}
+
+		private boolean isComplete(){
+			return licenseDone && defaultSetDone && setDone && collectionsDone;
+		}
+
+		private void finish(){
+			try {
+				if(whenDone!=null && missing)
+					whenDone.missing(node, photoId);
+				else if(whenDone!=null)
+					whenDone.done(node, photoId, isComplete());
+			} finally {
+				finished();
+			}
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package ch.jachen.dev.flickr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jickr.FlickrException;
+import org.jickr.FlickrRuntimeException;
+import org.jickr.License;
+import org.jickr.License.LicenseType;
+import org.jickr.Photo;
+import org.jickr.PhotoCollection;
+import org.jickr.PhotoSet;
+
+import ch.jachen.dev.util.Metrics;
+import ch.jachen.dev.util.Node;
+
+/**
+ * Organize uploaded photos: default license, default set and
+ * sets/collections named after the parent folders.
+ *
+ * Each step reports which photos succeeded so that a failed step can be retried
+ * alone. Photos going to the same set are handled together (the set is looked
+ * up or created once), then added by {@value #addConcurrency} calls at a time at
+ * most (all sets). Collections bookkeeping is synchronized so that a collection
+ * is never created twice.
+ *
+ * @author jbrek
+ */
+public class PhotoOrganizer {
+
+	private final static int codeSetNotFound = 1; // flickr.photosets.addPhoto error (set deleted)
+	private final static int codePhotoAlreadyInSet = 3; // flickr.photosets.addPhoto error (duplicates, retries)
+	private final static int codePhotoNotFound = 1; // flickr.photos.getInfo error (photo deleted)
+	private final static int addConcurrency = 8; // photos added to sets at the same time
+
+	private final LicenseType defaultLicense; /// Default license (null if undefined)
+	private final PhotoSet defaultSet; /// Default set for standalone files (null if undefined)
+	private final boolean createSet; /// Create set with parent folder name
+	private final boolean createCollection; /// Create collection with parent folder name of set
+	private final AlbumIndex albums; /// Existing sets and collections of the user (null if unknown)
+	private final ExecutorService addExecutor; /// Calls adding photos to sets
+
+	public PhotoOrganizer(LicenseType defaultLicense, PhotoSet defaultSet, boolean createSet, boolean createCollection,
+						  AlbumIndex albums) {
+		this.defaultLicense = defaultLicense;
+		this.defaultSet = defaultSet;
+		this.createSet = createSet;
+		this.createCollection = createCollection;
+		this.albums = albums;
+		this.addExecutor = Executors.newFixedThreadPool(addConcurrency, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "metadata-add");
+			}
+		});
+	}
+
+	/**
+	 * Stop the workers adding photos to sets (end of the run)
+	 */
+	public void close(){
+		addExecutor.shutdownNow();
+	}
+
+	/**
+	 * Is the photo still on Flickr (a copy is only linked to a photo which exists)
+	 *
+	 * @return false if the photo was deleted
+	 * @throws FlickrException if it cannot be checked
+	 */
+	public boolean exists(String photoId) throws FlickrException {
+		long start = System.nanoTime();
+		try {
+			Photo.findByID(photoId);
+			return true;
+		} catch (FlickrException e){
+			if(e.getCode()==codePhotoNotFound)
+				return false;
+			throw e;
+		} finally {
+			call("photos.getInfo").since(start);
+		}
+	}
+
+	/**
+	 * Set default license if applicable
+	 *
+	 * @return true if done (or nothing to do)
+	 */
+	public boolean updateLicense(Node node, String uploadedPhotoId){
+		if(defaultLicense!=null){
+			try {
+				long start = System.nanoTime();
+				try {
+					License.updateLicense(uploadedPhotoId, defaultLicense);
+				} finally {
+					call("photos.licenses.setLicense").since(start);
+				}
+				System.out.println("License \""+defaultLicense.getTitle()+"\" set for photo \""+node.getFile().getName()+"\" (id: "+uploadedPhotoId+")");
+			} catch(FlickrException e){
+				System.out.println("Error while updating licence \""+defaultLicense.getTitle()+"\" for photo (id: "+uploadedPhotoId+")\n"+e.getMessage());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Put standalone files in default set
+	 *
+	 * @param photos uploaded photos (id, node)
+	 * @return ids of the photos done (or with nothing to do)
+	 */
+	public Set<String> addToDefaultSet(Map<String, Node> photos){
+		Set<String> done = new HashSet<String>();
+		Map<String, Node> toAdd = new LinkedHashMap<String, Node>();
+		for(Map.Entry<String, Node> photo : photos.entrySet()){
+			if (defaultSet==null || !photo.getValue().isStandaloneFile())
+				done.add(photo.getKey());
+			else
+				toAdd.put(photo.getKey(), photo.getValue());
+		}
+		if(toAdd.isEmpty())
+			return done;
+		List<String> added = new ArrayList<String>();
+		addPhotos(defaultSet, "\""+defaultSet.getTitle()+"\" (id: "+defaultSet.getID()+")", toAdd, done, added);
+		if(!added.isEmpty())
+			System.out.println(added(added)+" added to set \""+defaultSet.getTitle()+"\" (id: "+defaultSet.getID()+").");
+		return done;
+	}
+
+	/**
+	 * Name of the set of the photo (named after its parent folder)
+	 *
+	 * @return name of the set, null if the photo is not organized in a set
+	 */
+	public String getSetName(Node node){
+		if(!isOrganizedInSet(node))
+			return null;
+		return node.getParent().getFile().getName();
+	}
+
+	/**
+	 * Put photos in their set (set created if needed)
+	 * The set is looked up (or created with the first photo as primary photo) once
+	 * for all the photos, which are then added in parallel. One set must not be
+	 * filled by two threads at the same time (see MetadataStage).
+	 *
+	 * @param setName name of the set of all the photos (see getSetName)
+	 * @param photos uploaded photos (id, node)
+	 * @return ids of the photos done
+	 */
+	public Set<String> addToSet(String setName, Map<String, Node> photos){
+		Set<String> done = new HashSet<String>();
+		PhotoSet set;
+		try {
+			set = albums.getSet(setName);
+		} catch (FlickrException e){
+			System.out.println("Error while getting set \""+setName+"\".\n"+e.getMessage());
+			return done;
+		}
+		Map<String, Node> toAdd = new LinkedHashMap<String, Node>(photos);
+		if(set==null && !toAdd.isEmpty()){
+			// New set: the first photo represents it
+			Map.Entry<String, Node> primary = toAdd.entrySet().iterator().next();
+			String uploadedPhotoId = primary.getKey();
+			try{
+				long start = System.nanoTime();
+				try {
+					set = PhotoSet.findByID(PhotoSet.newPhotoSet(setName, "", uploadedPhotoId));
+				} finally {
+					call("photosets.create").since(start);
+				}
+				albums.putSet(set);
+				done.add(uploadedPhotoId);
+				System.out.println("Set \""+setName+"\" (id: "+set.getID()+") was created. Photo "+primary.getValue().getFile().getName()+" (id: "+uploadedPhotoId+") represents this set.");
+			} catch (FlickrException e){
+				System.out.println("Error while create set \""+setName+"\" for photo (id: "+uploadedPhotoId+")\n"+e.getMessage());
+				return done;
+			}
+			toAdd.remove(uploadedPhotoId);
+		}
+		if(toAdd.isEmpty())
+			return done;
+
+		// Link photos to set
+		List<String> added = new ArrayList<String>();
+		if(!addPhotos(set, "\""+setName+"\"", toAdd, done, added))
+			albums.removeSet(setName); // deleted since indexed: created on retry
+		if(!added.isEmpty())
+			System.out.println(added(added)+" added to set \""+set.getTitle()+"\" (id: "+set.getID()+").");
+		return done;
+	}
+
+	/**
+	 * Add photos to a set, by {@value #addConcurrency} calls at a time at most
+	 *
+	 * @param set set of the photos
+	 * @param label set in the messages
+	 * @param photos photos to add (id, node)
+	 * @param done ids of the photos added or already in the set (filled)
+	 * @param added names of the files of the photos added (filled)
+	 * @return false if the set no longer exists (photos left not added)
+	 */
+	private boolean addPhotos(final PhotoSet set, final String label, Map<String, Node> photos, Set<String> done, List<String> added){
+		final Set<String> doneIds = Collections.synchronizedSet(new HashSet<String>());
+		final Set<String> addedIds = Collections.synchronizedSet(new HashSet<String>());
+		final AtomicBoolean setNotFound = new AtomicBoolean(false);
+		List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+		for(final Map.Entry<String, Node> photo : photos.entrySet())
+			calls.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					if(setNotFound.get())
+						return null;
+					String uploadedPhotoId = photo.getKey();
+					try {
+						long start = System.nanoTime();
+						try {
+							set.add(uploadedPhotoId);
+						} finally {
+							PhotoOrganizer.call("photosets.addPhoto").since(start);
+						}
+						addedIds.add(uploadedPhotoId);
+						doneIds.add(uploadedPhotoId);
+					} catch (FlickrException e){
+						if(e.getCode()==codePhotoAlreadyInSet){
+							doneIds.add(uploadedPhotoId);
+							return null;
+						}
+						System.out.println("Error while adding photo (id: "+uploadedPhotoId+") to set "+label+".\n"+e.getMessage());
+						if(e.getCode()==codeSetNotFound)
+							setNotFound.set(true);
+					}
+					return null;
+				}
+			});
+		try {
+			addExecutor.invokeAll(calls);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		done.addAll(doneIds);
+		for(Map.Entry<String, Node> photo : photos.entrySet())
+			if(addedIds.contains(photo.getKey()))
+				added.add(photo.getValue().getFile().getName());
+		return !setNotFound.get();
+	}
+
+	/**
+	 * Message for the photos added to a set
+	 */
+	private static String added(List<String> names){
+		if(names.size()==1)
+			return "Photo "+names.get(0)+" was";
+		return names.size()+" photos ("+names.get(0)+", ...) were";
+	}
+
+	/**
+	 * Put the set of the photo in the collections named after the parent folders of the set
+	 * (collections created if needed). The set must already exist (see addToSet).
+	 *
+	 * @return true if done (or nothing to do)
+	 */
+	public synchronized boolean addSetToCollections(Node node){
+		if(!createCollection || !isOrganizedInSet(node))
+			return true;
+
+		PhotoSet set;
+		try {
+			set = albums.getSet(node.getParent().getFile().getName());
+		} catch (FlickrException e){
+			System.out.println("Error while getting set \""+node.getParent().getFile().getName()+"\".\n"+e.getMessage());
+			return false;
+		}
+		if(set==null)
+			return false;
+
+		PhotoCollection collection = null;
+		PhotoCollection parentCollection = null;
+		Node currentCollection = node.getParent().getParent();
+		if(currentCollection!=null && !currentCollection.isRoot()){
+			List<Node> nodes = currentCollection.getParents();
+			nodes.add(0, currentCollection);
+			Collections.reverse(nodes);
+			StringBuilder path = new StringBuilder();
+			for(Node n : nodes){
+				if(!n.isRoot()){
+					String collectionName = n.getFile().getName();
+					if(collectionName==null || collectionName.length()==0)
+						throw new FlickrRuntimeException("Fatal error: folder name is null or empty");
+					path.append('/').append(collectionName);
+					// Check collection existance
+					try {
+						collection = albums.getCollection(path.toString(), collectionName);
+					} catch (FlickrException e){
+						System.out.println("Error while getting collection \""+collectionName+"\".\n"+e.getMessage());
+						return false;
+					}
+					if(collection==null){
+						String parentId = null;
+						if(parentCollection!=null)
+							parentId = parentCollection.getId();
+						try {
+							long start = System.nanoTime();
+							try {
+								collection = PhotoCollection.findByID(PhotoCollection.newPhotoCollection(collectionName, "", parentId, null));
+							} finally {
+								call("collections.create").since(start);
+							}
+							albums.putCollection(path.toString(), collection);
+						} catch (FlickrException e){
+							System.out.println("Error while creating collection \""+collectionName+"\".\n"+e.getMessage());
+							return false;
+						}
+						System.out.println("Collection \""+collection.getTitle()+"\" (id: "+collection.getId()+") was created"+
+											(parentCollection!=null?" with parent collection \""+parentCollection.getTitle()+
+													"\" (id: "+parentCollection.getId()+")":"")+".");
+					}
+
+					// Link to Set
+					if(n.equals(currentCollection)){
+						try {
+							boolean created;
+							long start = System.nanoTime();
+							try {
+								created = collection.addSet(set);
+							} finally {
+								call("collections.editSets").since(start);
+							}
+							if(created)
+								System.out.println("Set \""+set.getTitle()+"\" (id: "+set.getID()+") was added to collection \""+collection.getTitle()+"\" (id: "+collection.getId()+").");
+						} catch (FlickrException e){
+							System.out.println("Error while adding set \""+set.getTitle()+"\" (id: "+set.getID()+") to collection \""+collection.getTitle()+"\" (id: "+collection.getId()+").\n"+e.getMessage());
+							return false;
+						}
+					}
+					parentCollection = collection;
+					collection = null;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Latency of a Flickr method
+	 */
+	static Metrics.Histogram call(String method){
+		return Metrics.getInstance().histogram("flickr_call_seconds{method=\""+method+"\"}");
+	}
+
+	/**
+	 * Is the file organized in a set named after its parent folder
+	 */
+	private boolean isOrganizedInSet(Node node){
+		return createSet && !node.isStandaloneFile() && albums!=null;
+	}
+}
@@ -0,0 +1,209 @@
+package ch.jachen.dev.flickr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Animated progress of the uploads in Console output
+ *
+ * One scheduled thread draws a single bar for all the files being sent (sent size,
+ * throughput and remaining time). Upload callbacks only update counters.
+ * Other messages printed meanwhile clear the bar first, it is drawn again below them.
+ *
+ * @author jbrek
+ */
+class ProgressUpload {
+
+	private final static int width = 40; // progress bar width in chars
+	private final static long refreshMillis = 200; // delay between two drawings
+	private final static char[] animationProgressChars = new char[] { '-', '\\', '|', '/' };
+	private final static double denomMega = 1024d*1024d;
+
+	private final Set<Transfer> transfers = Collections.newSetFromMap(new ConcurrentHashMap<Transfer, Boolean>()); /// Files being sent
+	private final AtomicLong sent = new AtomicLong(0); /// Bytes sent by all files (throughput)
+	private final boolean keepFinished; /// Keep the full bar of each file sent (one upload at a time)
+	private final PrintStream console; /// Console output (before this renderer)
+	private final ScheduledExecutorService executor;
+	private final Object lock = new Object(); /// Console lock (bar and messages)
+	private int barLength = 0; /// Length of the bar shown as last line of the console, 0 if none (guarded by lock)
+	private long calls = 0;
+	private long lastSent = 0; /// Bytes sent at last drawing
+	private long lastTime = System.currentTimeMillis(); /// Time of last drawing
+	private double throughput = 0; /// Bytes per second (smoothed)
+
+	public ProgressUpload(boolean keepFinished) {
+		this.keepFinished = keepFinished;
+		this.console = System.out;
+		System.setOut(new PrintStream(new ConsoleStream(), true));
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "progress");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				draw();
+			}
+		}, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A file starts being sent
+	 */
+	public Transfer start(){
+		Transfer t = new Transfer();
+		transfers.add(t);
+		return t;
+	}
+
+	/**
+	 * Stop drawing and give the console back
+	 */
+	public void stop(){
+		executor.shutdownNow();
+		synchronized (lock) {
+			clear();
+			System.setOut(console);
+		}
+	}
+
+	/**
+	 * Draw the bar of the files being sent
+	 */
+	private void draw(){
+		long progress = 0;
+		long total = 0;
+		int count = 0;
+		for(Transfer t : transfers){
+			progress += t.progress.get();
+			total += t.total.get();
+			count++;
+		}
+
+		// Throughput of the last drawings (all files)
+		long now = System.currentTimeMillis();
+		long sent = this.sent.get();
+		if(now > lastTime){
+			double current = (sent - lastSent) * 1000d / (now - lastTime);
+			throughput = throughput==0 ? current : 0.8*throughput + 0.2*current;
+		}
+		lastSent = sent;
+		lastTime = now;
+
+		synchronized (lock) {
+			if(count==0 || total==0){
+				clear();
+				return;
+			}
+			String line = bar(progress, total, false, count)+speed(total-progress);
+			console.print("\r"+line);
+			console.flush();
+			barLength = Math.max(barLength, line.length());
+		}
+	}
+
+	private String bar(double progress, double total, boolean finished, int count){
+		double progressPercentage = Math.min(1d, progress / total);
+		StringBuilder sb = new StringBuilder(count>1 ? "Processing "+count+" files: |" : "Processing: |");
+		int i = 0;
+		int max = (int) (progressPercentage * width);
+		for (; i <= max; i++) {
+			sb.append((i < max || finished) ? '=' : animationProgressChars[(int)(calls++ % 4)]);
+		}
+		for (; i <= width; i++) {
+			sb.append(' ');
+		}
+		sb.append("| "+String.format("%3d", (finished ? 100 : progressPercentage==1?99:(int) (progressPercentage * 100)))
+				+ "% (" + String.format("%.1fMB/%.1fMB", progress/denomMega, total/denomMega) + ")");
+		return sb.toString();
+	}
+
+	private String speed(long remaining){
+		if(throughput<=0)
+			return "   ";
+		long eta = (long) (remaining / throughput);
+		return String.format(" %.1fMB/s ETA %02d:%02d:%02d   ", throughput/denomMega, eta/3600, (eta/60)%60, eta%60);
+	}
+
+	/**
+	 * Remove the bar from the console (lock held)
+	 */
+	private void clear(){
+		if(barLength==0)
+			return;
+		StringBuilder sb = new StringBuilder("\r");
+		for(int i = 0; i < barLength; i++)
+			sb.append(' ');
+		console.print(sb.append('\r'));
+		barLength = 0;
+	}
+
+	/**
+	 * Upload of one file: progress updated by the upload callback
+	 */
+	class Transfer {
+
+		private final AtomicLong progress = new AtomicLong(0);
+		private final AtomicLong total = new AtomicLong(0);
+
+		public void update(long progress, long total){
+			long previous = this.progress.getAndSet(progress);
+			if(progress > previous)
+				sent.addAndGet(progress - previous);
+			this.total.set(total);
+		}
+
+		/**
+		 * Upload ended: the full bar is kept in the console if enabled
+		 */
+		public void done(boolean success){
+			transfers.remove(this);
+			if(!success || !keepFinished)
+				return;
+			synchronized (lock) {
+				clear();
+				console.println(bar(total.get(), total.get(), true, 1));
+			}
+		}
+	}
+
+	/**
+	 * Console output clearing the bar before any message
+	 */
+	private class ConsoleStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			synchronized (lock) {
+				clear();
+				console.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (lock) {
+				clear();
+				console.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			console.flush();
+		}
+	}
+}
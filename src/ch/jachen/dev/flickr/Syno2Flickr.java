@@ -4,34 +4,30 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
 
 import org.jickr.Auth;
 import org.jickr.Flickr;
 import org.jickr.FlickrException;
-import org.jickr.FlickrRuntimeException;
-import org.jickr.License;
 import org.jickr.License.LicenseType;
-import org.jickr.MimeType;
 import org.jickr.Permission;
-import org.jickr.Photo;
-import org.jickr.PhotoCollection;
 import org.jickr.PhotoSet;
-import org.jickr.PhotoUpload;
 import org.jickr.Privacy;
-import org.jickr.RequestEvent;
-import org.jickr.RequestListener;
 import org.jickr.User;
 import org.jickr.UserLimitations;
 
 import ch.jachen.dev.util.DateUtils;
+import ch.jachen.dev.util.EventLog;
+import ch.jachen.dev.util.Metrics;
+import ch.jachen.dev.util.MetricsExporter;
 import ch.jachen.dev.util.Node;
 import ch.jachen.dev.util.Tree;
+import ch.jachen.dev.util.TreeSnapshot;
 
 
 /**
@@ -46,26 +42,13 @@ import ch.jachen.dev.util.Tree;
 public class Syno2Flickr {
 
 	/**
-	 * Progress bar for console output
-	 * @param progressPercentage progress (0.0. to 1.0)
-	 */
-	private static Stack<Thread> progressList = new Stack<Thread>();
-	private static void stopAllThreads(){		
-		while(!progressList.empty()){
-			ProgressUpload p = (ProgressUpload) progressList.pop();
-			p.stopRun();
-		}
-	}	
-	
-	/**
-	 * Interrupt all threads
-	 * Interrupt animation (used in error/exception case)
+	 * Save the directories listed (next run does not list the unchanged ones again)
 	 */
-	private static void interruptAllThreads(){
-		
-		while(!progressList.empty()){
-			ProgressUpload p = (ProgressUpload) progressList.pop();
-			p.interruptRun();
+	private static void saveSnapshot(Tree tree, File snapshotFile){
+		try {
+			tree.getSnapshot().save(snapshotFile);
+		} catch (IOException e) {
+			System.out.println("Warning: directory snapshot cannot be saved ("+snapshotFile.getPath()+"). Next run will list all directories.\n"+e.getMessage());
 		}
 	}
 	
@@ -158,7 +141,7 @@ public class Syno2Flickr {
 	public static void printWelcome(){
 		System.out.print("\n");
 		System.out.println("**********************************************************************");
-		System.out.println("* Syno2Flickr v0.2.1 - June 2nd, 2014                                *");
+		System.out.println("* Syno2Flickr v0.3.0 - October 17th, 2026                            *");
 		System.out.println("*    https://github.com/syno2flickr/syno2flickr                      *");
 		System.out.println("**********************************************************************");
 	}
@@ -181,9 +164,6 @@ public class Syno2Flickr {
 		org.jickr.Permission perm = Permission.WRITE; // access level we want
 		org.jickr.User user = null; // User Flickr authenticated
 
-		// Welcome
-		printWelcome();
-		
 		// Get property values
 		try {
 
@@ -194,6 +174,13 @@ public class Syno2Flickr {
 			
 			// Override properties
 			Syno2FlickrProperties.getInstance().overrideProperties(args);
+			
+			// Output format (JSON lines)
+			if(Syno2FlickrProperties.getInstance().isLogJson())
+				EventLog.getInstance().startJson();
+			
+			// Welcome
+			printWelcome();
 
 			// Set key/secret
 			Flickr.setApiKey(Syno2FlickrProperties.getInstance().getApiKey());
@@ -233,6 +220,11 @@ public class Syno2Flickr {
 
 		// Auth
 		user = authenticationToFlickr(user, perm);
+
+		// Upload bodies streamed from the files (not held in the heap)
+		FlickrUpload flickrUpload = FlickrUpload.forUser(user);
+		if(flickrUpload==null)
+			System.out.println("Warning: the token of the user is not available from jickr, uploads are sent by jickr. Large videos may need a larger heap (java -Xmx).");
 		Date start = new Date();
 		
 		// Check default set
@@ -287,27 +279,45 @@ public class Syno2Flickr {
 			errorFolder = new File(errorFolderString);
 		} catch (Exception e) {}
 		
-		// Build sync folder tree
+		// Metrics of the run (JMX, local endpoint if enabled)
+		MetricsExporter metricsExporter = new MetricsExporter(Metrics.getInstance());
+		try {
+			metricsExporter.registerMBean();
+		} catch (JMException e) {
+			System.out.println("Warning: metrics cannot be registered in JMX.\n"+e.getMessage());
+		}
+		if(Syno2FlickrProperties.getInstance().getMetricsPort()>0)
+			try {
+				metricsExporter.startHttp(Syno2FlickrProperties.getInstance().getMetricsPort());
+			} catch (IOException e) {
+				System.out.println("Warning: metrics endpoint cannot be started on port "+Syno2FlickrProperties.getInstance().getMetricsPort()+".\n"+e.getMessage());
+			}
+		
+		// Sync folder tree (scanned while uploading)
+		long scanStart = System.nanoTime();
 		Set<File> excludes = new HashSet<File>();
 		if(archiveFolder!=null && archiveFolder.exists())
 			excludes.add(archiveFolder);
 		if(errorFolder!=null && errorFolder.exists())
 			excludes.add(errorFolder);
-		Tree syncFolderTree = new Tree(folder, Syno2FlickrProperties.getInstance().getFolderSyncMaxDepth(), excludes);
+		File snapshotFile = Syno2FlickrProperties.getInstance().getStateFile("snapshot");
+		Tree syncFolderTree = new Tree(folder, Syno2FlickrProperties.getInstance().getFolderSyncMaxDepth(), excludes, TreeSnapshot.load(snapshotFile), 
+									   Syno2FlickrProperties.getInstance().getScanParallelism());
 		
-		if(syncFolderTree.isEmpty())
+		final boolean watchMode = Syno2FlickrProperties.getInstance().isWatchMode();
+		if(syncFolderTree.isEmpty() && !watchMode){
 			System.out.println("No file to upload.");
-		else {
+			saveSnapshot(syncFolderTree, snapshotFile);
+		} else {
 			// Get Set / Collection info
 			boolean createCollection = Syno2FlickrProperties.getInstance().isCreateCollection();
 			boolean createSet = createCollection || Syno2FlickrProperties.getInstance().isCreateSet();
-			List<PhotoSet> userSets = null;
-			List<PhotoCollection> userCollections = null;
+			AlbumIndex albums = null;
 			if(createCollection || createSet)
 				try {
 					System.out.print("\nRetrieving existing sets and collections...");
-					userSets = user.getPhotoSets();
-					userCollections = user.getCollections(false);
+					albums = new AlbumIndex(user, Syno2FlickrProperties.getInstance().getStateFile("albums"), 
+											Syno2FlickrProperties.getInstance().getAlbumCacheMinutes());
 					System.out.println(" OK.\n");
 				} catch (FlickrException e) {
 					System.out.println("Error while retrieving your collections and sets. Photos will not be organized.");
@@ -335,9 +345,12 @@ public class Syno2Flickr {
 				syncFolderTree.printTree(level);
 			}
 							
-			// Show nb files founds
-			final int nbFilesFound = syncFolderTree.countFiles();
-			System.out.println("\nStart uploading: " + nbFilesFound + " file"+(nbFilesFound>1?"s":"")+" found to upload");
+			// Show nb files founds (estimated from last scan if the tree is not built)
+			int nbFilesFound = syncFolderTree.estimateFiles();
+			if(nbFilesFound<0)
+				System.out.println("\nStart uploading");
+			else
+				System.out.println("\nStart uploading: " + (syncFolderTree.isBuilt() ? "" : "about ") + nbFilesFound + " file"+(nbFilesFound>1?"s":"")+" found to upload");
 			
 			// Check archive folder folder
 			if (archiveFolder==null || !archiveFolder.exists()){
@@ -349,243 +362,93 @@ public class Syno2Flickr {
 				System.out.println("Warning: error folder does not exist ("+(errorFolder==null ? "property not found" : errorFolder.getPath())+"). Unsuccessfully sent files will not be moved.");
 			}
 			
-			int noFile = 0;
 			try {
 				
-				// Get bandwith remaining
-				long bandwidthRemaingBytes = userLimits.getBandwidthRemainingBytes();
+				// Open upload journal (resume interrupted uploads)
+				UploadJournal journal = null;
+				File journalFile = Syno2FlickrProperties.getInstance().getStateFile("journal");
+				try {
+					journal = new UploadJournal(journalFile);
+				} catch (IOException e) {
+					System.out.println("Warning: upload journal cannot be opened ("+journalFile.getPath()+"). Interrupted uploads will not be resumed.\n"+e.getMessage());
+				}
 				
-				// Get all files to upload
-				for (Node node : syncFolderTree.getRoot().getFiles()) {
-					// Get file
-					File f = node.getFile();
-					
-					// init
-					noFile++;
-					
-					// Check limitations/file type
-					if(!userLimits.isBandwidthUnlimited() && (bandwidthRemaingBytes-f.length()) < 0){
-						System.out.println("Error: user " + user.getUserName() + 
-										   " has reached his monthly bandwidth limit ("+
-										   userLimits.getBandwidthMaxBytes()/denomMega+
-										   "MB). Upload cancelled.");
-						break;
-					}
-					String mime=null;
+				// Open hash index (skip duplicates)
+				HashIndex hashIndex = null;
+				if(Syno2FlickrProperties.getInstance().isSkipDuplicates()){
+					File hashIndexFile = Syno2FlickrProperties.getInstance().getStateFile("hashes");
 					try {
-						mime = MimeType.getMimeType("file://"+f.getPath());
-					} catch (IOException e1) {}
-					
-					if (mime!=null && mime.contains("image")) {
-						if (f.length() > userLimits.getFilesizeMaxBytes()){
-							System.out.println("Error: image \"" + f.getName()+ "\" exceeds the maximum accepted size (max. "+
-													userLimits.getFilesizeMaxBytes()/denomMega+"MB). Skipped.");
-							continue;
-						}
-							
-					} else {
-						if (f.length() > userLimits.getVideosizeMaxBytes()){
-							System.out.println("Error: \"" + f.getName()+ 
-											   "\" exceeds the maximum accepted size (max. "+
-											   userLimits.getVideosizeMaxBytes()/denomMega+"MB). Skipped.");
-							continue;
-						}
+						hashIndex = new HashIndex(hashIndexFile);
+					} catch (IOException e) {
+						System.out.println("Warning: hash index cannot be opened ("+hashIndexFile.getPath()+"). Duplicates will not be skipped.\n"+e.getMessage());
 					}
-					
-					// Info
-					final boolean showNoCr = Syno2FlickrProperties.getInstance().isShowUploadProgressNoCR() && 
-						  						!Syno2FlickrProperties.getInstance().isShowUploadProgress();
-					System.out.println("\nSending "+f.getName()+ " ("+(showNoCr ? "size: "+String.format("%.1fMB", f.length()/(1024d*1024d))+", no: " : "")+noFile+"/"+nbFilesFound+"):");
-					
-					// Generate metadata for the upload
-					PhotoUpload uploader = new PhotoUpload.Builder(f)
-																.familyFlag(defaultPrivacy.equals(Privacy.FAMILY) || defaultPrivacy.equals(Privacy.FRIENDSANDFAMILY))
-																.friendFlag(defaultPrivacy.equals(Privacy.FRIENDS) || defaultPrivacy.equals(Privacy.FRIENDSANDFAMILY))
-																.publicFlag(defaultPrivacy.equals(Privacy.PUBLIC))
-																.build();
-		
+				}
+				
+				// Upload files (uploadConcurrency files at a time)
+				PhotoOrganizer organizer = new PhotoOrganizer(defaultLicense, defaultSet, createSet, createCollection, albums);
+				UploadPipeline pipeline = new UploadPipeline(user, userLimits, organizer, journal, hashIndex, syncFolder, archiveFolder, errorFolder, 
+															 defaultPrivacy, Math.max(0, nbFilesFound), Syno2FlickrProperties.getInstance().getUploadConcurrency(),
+															 Syno2FlickrProperties.getInstance().getHashConcurrency(), flickrUpload);
+				// Watch mode: a file over the bandwidth limit is skipped (uploaded on next start)
+				if(watchMode)
+					pipeline.setCancelOnBandwidthLimit(false);
+				
+				// Limited bandwidth: choose the files which fit before sending any
+				Iterable<Node> files = syncFolderTree;
+				if(!userLimits.isBandwidthUnlimited()){
+					UploadPlanner planner = new UploadPlanner(userLimits, journal, 
+															  UploadQueue.Order.parse(Syno2FlickrProperties.getInstance().getUploadOrder()), pipeline.getTransformer());
+					files = planner.plan(syncFolderTree);
+					pipeline.setCancelOnBandwidthLimit(false);
+				}
+				for (Node node : files) {
+					if(!pipeline.submit(node))
+						break;
+				}
+				syncFolderTree.close();
+				Metrics.getInstance().gauge("scan_seconds", (System.nanoTime() - scanStart) / 1e9);
+				saveSnapshot(syncFolderTree, snapshotFile);
+				
+				// Watch mode: upload new files until stopped
+				if(watchMode && !pipeline.isCancelled()){
 					try {
-						
-						// Upload the content
-						final int maxWidth=75;
-						boolean showProgress = Syno2FlickrProperties.getInstance().isShowUploadProgress() || Syno2FlickrProperties.getInstance().isShowUploadProgressNoCR();
-						if(showNoCr){
-							// No carriage return mode
-							System.out.print("< 0% ");
-							for(int i=0; i < maxWidth - "0% ".length() - " 100%".length(); i++)
-								System.out.print("-");
-							System.out.println(" 100% >");
-							System.out.print("< ");	
-						}
-						String uploadedPhotoId = Photo.uploadNewPhoto(uploader, showProgress ? new RequestListener() {	
-							private int progressNoCr=0;
-							
+						final FolderWatcher watcher = new FolderWatcher(syncFolderTree, Syno2FlickrProperties.getInstance().getFolderSyncMaxDepth(), excludes, 
+																		Syno2FlickrProperties.getInstance().getWatchDebounceSeconds(), pipeline);
+						final Thread mainThread = Thread.currentThread();
+						Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
 							@Override
-							public void progressRequest(RequestEvent event) {
-								if(showNoCr){
-									// Show light animation (without carriage return)
-									if (event.getProgress()<event.getTotalProgress()){
-										int ratio = (int) ((double)event.getProgress() / event.getTotalProgress() * (double)maxWidth);
-										int steps = ratio - progressNoCr;
-										for(int i=0; i < steps; i++){
-											System.out.print("=");
-											System.out.flush();
-										}
-										progressNoCr += steps;
-									} else {
-										int steps = maxWidth - progressNoCr;
-										for(int i=0; i < steps; i++){
-											System.out.print("=");
-											System.out.flush();
-										}
-										System.out.println(" >");
-									}
-								} else {
-									// Show animate progess bar
-									stopAllThreads();
-									ProgressUpload r = new ProgressUpload(event.getProgress(), 
-																		  event.getTotalProgress());
-									progressList.push(r);
-									r.start();	
-								}
-							}
-						} : null); 
-						// Stop all threads
-						stopAllThreads();
-		
-						// Set default license if applicable
-						if(defaultLicense!=null){
-							try {
-								License.updateLicense(uploadedPhotoId, defaultLicense);
-								System.out.println("License \""+defaultLicense.getTitle()+"\" set for photo \""+node.getFile().getName()+"\" (id: "+uploadedPhotoId+")");
-							} catch(FlickrException e){
-								System.out.println("Error while updating licence \""+defaultLicense.getTitle()+"\" for photo (id: "+uploadedPhotoId+")\n"+e.getMessage());
-							}
-						}
-						
-						// Put in default set
-						if (defaultSet!=null && node.isStandaloneFile()){
-							try {
-								defaultSet.add(uploadedPhotoId);
-								System.out.println("Photo "+node.getFile().getName()+" (id: "+uploadedPhotoId+") was added to set \""+defaultSet.getTitle()+"\" (id: "+defaultSet.getID()+").");
-							} catch(FlickrException e){
-								System.out.println("Error while adding photo (id: "+uploadedPhotoId+") to set \""+defaultSet.getTitle()+"\" (id: "+defaultSet.getID()+").\n"+e.getMessage());
-							}
-						}
-						
-						// Set / Collection
-						if(createSet && !node.isStandaloneFile() && userCollections!=null){
-							PhotoSet set = null;
-							String setName = node.getParent().getFile().getName();
-							
-							// Check set existance
-							for(PhotoSet ps : userSets){
-								if(ps.getTitle().equals(setName)){
-									set = ps;
-									break;
-								}
-							}
-							if(set==null){
-								try{
-									set = PhotoSet.findByID(PhotoSet.newPhotoSet(setName, "", uploadedPhotoId));
-									userSets = user.getPhotoSets();				
-									System.out.println("Set \""+setName+"\" (id: "+set.getID()+") was created. Photo "+node.getFile().getName()+" (id: "+uploadedPhotoId+") represents this set.");
-								} catch (FlickrException e){
-									System.out.println("Error while create set \""+setName+"\" for photo (id: "+uploadedPhotoId+")\n"+e.getMessage());
-								}
-							} else {			
-								try{
-									// Link Photo to set
-									set.add(uploadedPhotoId);
-									System.out.println("Photo "+node.getFile().getName()+" (id: "+uploadedPhotoId+") was added to set \""+set.getTitle()+"\" (id: "+set.getID()+").");
-								} catch (FlickrException e){
-									System.out.println("Error while adding photo (id: "+uploadedPhotoId+") to set \""+setName+"\".\n"+e.getMessage());
-								}
+							public void run() {
+								watcher.stop();
+								try {
+									mainThread.join(TimeUnit.MINUTES.toMillis(1));
+								} catch (InterruptedException e) {}
 							}
-							
-							// Collections parent
-							if(createCollection){
-								PhotoCollection collection = null;
-								PhotoCollection parentCollection = null;
-								Node currentCollection = node.getParent().getParent();
-								if(currentCollection!=null && !currentCollection.isRoot()){
-									List<Node> nodes = currentCollection.getParents();
-									nodes.add(0, currentCollection);
-									Collections.reverse(nodes);
-									for(Node n : nodes){
-										if(!n.isRoot()){
-											String collectionName = n.getFile().getName();
-											if(collectionName==null || collectionName.length()==0)
-												throw new FlickrRuntimeException("Fatal error: folder name is null or empty");
-											// Check collection existance
-											for(PhotoCollection pc : userCollections){
-												PhotoCollection result = pc.findCollectionByName(collectionName);
-												if(result!=null){
-													collection = result;
-													break;
-												}
-											}
-											if(collection==null){
-												String parentId = null;
-												if(parentCollection!=null)
-													parentId = parentCollection.getId(); 
-												collection = PhotoCollection.findByID(PhotoCollection.newPhotoCollection(collectionName, "", parentId, null));
-												userCollections = user.getCollections(false);
-												System.out.println("Collection \""+collection.getTitle()+"\" (id: "+collection.getId()+") was created"+
-																	(parentCollection!=null?" with parent collection \""+parentCollection.getTitle()+
-																			"\" (id: "+parentCollection.getId()+")":"")+".");
-											} 
-											
-											// Link to Set
-											if(collection!=null && n.equals(currentCollection)){
-												try {
-													boolean created = collection.addSet(set);
-													if(created)
-														System.out.println("Set \""+set.getTitle()+"\" (id: "+set.getID()+") was added to collection \""+collection.getTitle()+"\" (id: "+collection.getId()+").");
-												} catch (FlickrException e){
-													System.out.println("Error while adding set \""+set.getTitle()+"\" (id: "+set.getID()+") to collection \""+collection.getTitle()+"\" (id: "+collection.getId()+").\n"+e.getMessage());
-												}
-											}
-											parentCollection = collection;
-											collection = null;
-										}
-									}
-								}
-							}						
-						}					
-						
-						// Move uploaded file to archive
-						if (archiveFolder!=null && archiveFolder.exists()){
-							String targetDir = archiveFolder.getPath() + f.getPath().replace(syncFolder, "").replace(f.getName(), "");
-							File archivedFile = new File(targetDir);
-							archivedFile.mkdirs();
-							f.renameTo(new File(archivedFile.getPath()+File.separator+f.getName()));
-						}
-						
-						// Update bandwidth remaining
-						if (!userLimits.isBandwidthUnlimited()) 
-							bandwidthRemaingBytes-=f.length();
-		
-					} catch (FlickrException e) {					
-						interruptAllThreads();					
-						System.out.println("\nERROR: An error occured while uploading file "
-								+ f.getPath()+":\n"+e.getMessage());
-						
-						if (e.getCode()==6 || e.getCode()==-999) break;
-						// Move file to error
-						if (errorFolder!=null && errorFolder.exists()){						
-							String targetDir = errorFolder.getPath() + f.getPath().replace(syncFolder, "").replace(f.getName(), "");
-							File errorFile = new File(targetDir);
-							errorFile.mkdirs();
-							f.renameTo(new File(errorFile.getPath()+File.separator+f.getName()));
-						}
+						});
+						System.out.println("\nWatching "+folder.getPath()+" for new files (stop with Ctrl+C)");
+						watcher.run();
+					} catch (IOException e) {
+						System.out.println("Error: folder "+folder.getPath()+" cannot be watched.\n"+e.getMessage());
 					}
 				}
+				pipeline.awaitTermination();
+				if(journal!=null)
+					journal.close();
+				if(hashIndex!=null)
+					hashIndex.close();
+				if(albums!=null)
+					albums.save();
 				
 				// Summary
 				Date end = new Date();
 				try { Thread.sleep(500); } catch (InterruptedException e) {}
 				System.out.println("\n\nSend completed in "+DateUtils.getFormatedTimeElapsed(start, end));
+				File metricsFile = Syno2FlickrProperties.getInstance().getStateFile("metrics.json");
+				try {
+					Metrics.getInstance().writeJson(metricsFile);
+					System.out.println("Metrics of the run written to "+metricsFile.getPath());
+				} catch (IOException e) {
+					System.out.println("Warning: metrics cannot be written to "+metricsFile.getPath()+".\n"+e.getMessage());
+				}
 				
 			} catch (FlickrException e){
 				System.out.println("\nA grave error occurs:\n"+e.getMessage());
@@ -593,90 +456,12 @@ public class Syno2Flickr {
 			}
 		}
 
+		metricsExporter.stop();
+		
 		// Bye
 		try { Thread.sleep(500); } catch (InterruptedException e) {}
 		System.out.println("\nBye.");
+		EventLog.getInstance().stop();
 	}
 
 }
-
-/**
- * Class to animate progress uploading in Console output
- * @author jbrek
- *
- */
-class ProgressUpload extends Thread{
-
-	private final double progress;
-	private final double total;
-	private boolean stop=false;
-	private boolean interrupt=false;
-	private static long calls = 0;
-	
-	public ProgressUpload(double progress, double total) {
-		this.progress = progress;
-		this.total = total;
-	}
-	
-	private final static int width = 40; // progress bar width in chars
-	private final static char[] animationProgressChars = new char[] { '-', '\\', '|', '/' };
-	
-	/**
-	 * Show progress of upload in Console
-	 * @param progress progress in bytes
-	 * @param total	total in bytes
-	 * @param finished is the progress finished
-	 */
-	public static void showProgress(double progress, double total, boolean finished){		
-		double progressPercentage = progress / total;
-		System.out.print("\rProcessing: |");
-		int i = 0;
-		int max = 0;
-		for (; i <= (max = (int) (progressPercentage * width)); i++) {
-			System.out.print(((i < max || finished) ? "="
-					: animationProgressChars[(int)(calls++ % 4)]));
-		}
-		for (; i <= width; i++) {
-			System.out.print(" ");
-		}
-		System.out.print("| "
-				+ String.format("%3d", (finished ? 100 : progressPercentage==1?99:(int) (progressPercentage * 100)))
-				+ "% (" + String.format("%.1fMB/%.1fMB", progress/(1024*1024), total/(1024*1024)) + ")");	
-	}
-	
-	/**
-	 * Stop thread
-	 * Ends animation progress and show total progress
-	 */
-	public void stopRun(){
-		stop = true;
-	}
-	
-	/**
-	 * Interrupt thread 
-	 * Ends animation progress wihtout output
-	 */
-	public void interruptRun(){
-		interrupt = true;
-	}
-	
-	@Override
-	public void run() {
-		synchronized (System.out) {			
-			// Update progress		
-			while(!stop && !interrupt){			
-				// Show animation
-				showProgress(progress, total, false);
-				try{
-					Thread.sleep(200);
-				} catch (Exception e) {}
-			}
-			
-			// If process finished but not interrupted
-			if (!interrupt && progress==total){
-				showProgress(total, total, true);
-				System.out.print("\n");
-			}
-		}
-	}	
-}
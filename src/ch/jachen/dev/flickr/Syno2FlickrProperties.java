@@ -1,9 +1,13 @@
 package ch.jachen.dev.flickr;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * Get Flickr properties (sharedKey, api key, ...) Singleton not thread-safe.
@@ -31,7 +35,26 @@ public class Syno2FlickrProperties {
 	private Boolean showFoundFilesTree=false; // Display all objects found
 	private Boolean showFoundFilesTreeReduced=false; // Display reduced objects found (depending on createSet and createCollection)
 	private Boolean debug=false; // Debug mode
+	private Integer uploadConcurrency=1; // Number of files uploaded simultaneously
+	private Boolean skipDuplicates=false; // Do not upload a content already uploaded (same content, any name; each file is hashed)
+	private Integer hashConcurrency=2; // Number of files hashed (or read ahead) simultaneously
+	private Integer readAheadMB=0; // Size of the files read ahead of the upload (0: none)
+	private Boolean watchMode=false; // Keep running and upload new files of syncFolder as they arrive
+	private Integer watchDebounceSeconds=10; // Delay without change before a new file is uploaded (watch mode)
+	private Integer uploadRetries=3; // Retries of a file after a network error
+	private Integer uploadRetryDelaySeconds=30; // Delay before the first retry (doubled each time)
+	private Integer scanParallelism=4; // Number of directories of syncFolder listed at the same time
+	private String uploadOrder="folder"; // Order of the uploads, also the files sent first when the monthly bandwidth is limited (folder, oldest, newest, smallest, fair)
+	private Integer resizeOverMegapixels=0; // Images over this number of megapixels are resized to it before upload (0: never)
+	private Integer recompressOverMB=0; // Images over this size are recompressed before upload (0: never)
+	private Integer jpegQuality=85; // Quality of resized or recompressed images (1-100)
+	private Integer uploadRateLimit=0; // Upload rate limit of all uploads (KB/s, 0: unlimited)
+	private String uploadRateSchedule=""; // Upload rate by time window (HH:mm-HH:mm=KB/s,...)
+	private Integer albumCacheMinutes=0; // Age of the kept sets and collections index before listing them again (0: not kept)
+	private Integer metricsPort=0; // Local port of the metrics endpoint (Prometheus text, 0: none)
+	private String logFormat="text"; // Output: text (console) or json (one JSON event per line)
 	private boolean gotProperties = false; // Flag to know if we already read property file
+	private final Set<String> overridden = new HashSet<String>(); // Properties given on the command line (kept when the file is read again)
 	
 	private Syno2FlickrProperties() {}
  
@@ -121,6 +144,65 @@ public class Syno2FlickrProperties {
 		try {
 			debug = Boolean.parseBoolean(prop.getProperty("debug").trim());
 		} catch (Exception e) {}		
+		try {
+			uploadConcurrency = Integer.parseInt(prop.getProperty("uploadConcurrency").trim());
+		} catch (Exception e) {}
+		try {
+			skipDuplicates = Boolean.parseBoolean(prop.getProperty("skipDuplicates").trim());
+		} catch (Exception e) {}
+		try {
+			hashConcurrency = Integer.parseInt(prop.getProperty("hashConcurrency").trim());
+		} catch (Exception e) {}
+		try {
+			readAheadMB = Integer.parseInt(prop.getProperty("readAheadMB").trim());
+		} catch (Exception e) {}
+		try {
+			watchMode = Boolean.parseBoolean(prop.getProperty("watchMode").trim());
+		} catch (Exception e) {}
+		try {
+			watchDebounceSeconds = Integer.parseInt(prop.getProperty("watchDebounceSeconds").trim());
+		} catch (Exception e) {}
+		try {
+			uploadRetries = Integer.parseInt(prop.getProperty("uploadRetries").trim());
+		} catch (Exception e) {}
+		try {
+			uploadRetryDelaySeconds = Integer.parseInt(prop.getProperty("uploadRetryDelaySeconds").trim());
+		} catch (Exception e) {}
+		try {
+			scanParallelism = Integer.parseInt(prop.getProperty("scanParallelism").trim());
+		} catch (Exception e) {}
+		try {
+			if(prop.getProperty("uploadOrder")!=null)
+				uploadOrder = prop.getProperty("uploadOrder").trim();
+			else if(prop.getProperty("uploadPriority")!=null)
+				uploadOrder = prop.getProperty("uploadPriority").trim(); // former name of uploadOrder
+		} catch (Exception e) {}
+		try {
+			resizeOverMegapixels = Integer.parseInt(prop.getProperty("resizeOverMegapixels").trim());
+		} catch (Exception e) {}
+		try {
+			recompressOverMB = Integer.parseInt(prop.getProperty("recompressOverMB").trim());
+		} catch (Exception e) {}
+		try {
+			jpegQuality = Integer.parseInt(prop.getProperty("jpegQuality").trim());
+		} catch (Exception e) {}
+		try {
+			uploadRateLimit = Integer.parseInt(prop.getProperty("uploadRateLimit").trim());
+		} catch (Exception e) {}
+		try {
+			if(prop.getProperty("uploadRateSchedule")!=null)
+				uploadRateSchedule = prop.getProperty("uploadRateSchedule").trim();
+		} catch (Exception e) {}
+		try {
+			albumCacheMinutes = Integer.parseInt(prop.getProperty("albumCacheMinutes").trim());
+		} catch (Exception e) {}
+		try {
+			metricsPort = Integer.parseInt(prop.getProperty("metricsPort").trim());
+		} catch (Exception e) {}
+		try {
+			if(prop.getProperty("logFormat")!=null)
+				logFormat = prop.getProperty("logFormat").trim();
+		} catch (Exception e) {}
 		
 		// Set flag OK
 		gotProperties = true;
@@ -317,6 +399,294 @@ public class Syno2FlickrProperties {
 		return Boolean.TRUE.equals(debug);
 	}
 
+	public Integer getUploadConcurrency() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 1;
+			}
+		return uploadConcurrency==null || uploadConcurrency<1 ? 1 : uploadConcurrency;
+	}
+
+	public void setUploadConcurrency(Integer uploadConcurrency) {
+		this.uploadConcurrency = uploadConcurrency;
+	}
+
+	public boolean isSkipDuplicates() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return false;
+			}
+		return Boolean.TRUE.equals(skipDuplicates);
+	}
+
+	public void setSkipDuplicates(Boolean skipDuplicates) {
+		this.skipDuplicates = skipDuplicates;
+	}
+
+	public Integer getHashConcurrency() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 2;
+			}
+		return hashConcurrency==null || hashConcurrency<1 ? 1 : hashConcurrency;
+	}
+
+	public void setHashConcurrency(Integer hashConcurrency) {
+		this.hashConcurrency = hashConcurrency;
+	}
+
+	public Integer getReadAheadMB() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 0;
+			}
+		return readAheadMB==null || readAheadMB<0 ? 0 : readAheadMB;
+	}
+
+	public void setReadAheadMB(Integer readAheadMB) {
+		this.readAheadMB = readAheadMB;
+	}
+
+	public boolean isWatchMode() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return false;
+			}
+		return Boolean.TRUE.equals(watchMode);
+	}
+
+	public void setWatchMode(Boolean watchMode) {
+		this.watchMode = watchMode;
+	}
+
+	public Integer getWatchDebounceSeconds() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 10;
+			}
+		return watchDebounceSeconds==null || watchDebounceSeconds<0 ? 0 : watchDebounceSeconds;
+	}
+
+	public void setWatchDebounceSeconds(Integer watchDebounceSeconds) {
+		this.watchDebounceSeconds = watchDebounceSeconds;
+	}
+
+	public Integer getAlbumCacheMinutes() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 0;
+			}
+		return albumCacheMinutes==null || albumCacheMinutes<0 ? 0 : albumCacheMinutes;
+	}
+
+	public void setAlbumCacheMinutes(Integer albumCacheMinutes) {
+		this.albumCacheMinutes = albumCacheMinutes;
+	}
+
+	public Integer getUploadRetries() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 3;
+			}
+		return uploadRetries==null || uploadRetries<0 ? 0 : uploadRetries;
+	}
+
+	public void setUploadRetries(Integer uploadRetries) {
+		this.uploadRetries = uploadRetries;
+	}
+
+	public Integer getUploadRetryDelaySeconds() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 30;
+			}
+		return uploadRetryDelaySeconds==null || uploadRetryDelaySeconds<1 ? 1 : uploadRetryDelaySeconds;
+	}
+
+	public void setUploadRetryDelaySeconds(Integer uploadRetryDelaySeconds) {
+		this.uploadRetryDelaySeconds = uploadRetryDelaySeconds;
+	}
+
+	public Integer getScanParallelism() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 4;
+			}
+		return scanParallelism==null || scanParallelism<1 ? 1 : scanParallelism;
+	}
+
+	public void setScanParallelism(Integer scanParallelism) {
+		this.scanParallelism = scanParallelism;
+	}
+
+	public String getUploadOrder() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return "folder";
+			}
+		return uploadOrder;
+	}
+
+	public void setUploadOrder(String uploadOrder) {
+		this.uploadOrder = uploadOrder;
+	}
+
+	public Integer getResizeOverMegapixels() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 0;
+			}
+		return resizeOverMegapixels==null || resizeOverMegapixels<0 ? 0 : resizeOverMegapixels;
+	}
+
+	public void setResizeOverMegapixels(Integer resizeOverMegapixels) {
+		this.resizeOverMegapixels = resizeOverMegapixels;
+	}
+
+	public Integer getRecompressOverMB() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 0;
+			}
+		return recompressOverMB==null || recompressOverMB<0 ? 0 : recompressOverMB;
+	}
+
+	public void setRecompressOverMB(Integer recompressOverMB) {
+		this.recompressOverMB = recompressOverMB;
+	}
+
+	public Integer getJpegQuality() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 85;
+			}
+		return jpegQuality==null ? 85 : Math.max(1, Math.min(100, jpegQuality));
+	}
+
+	public void setJpegQuality(Integer jpegQuality) {
+		this.jpegQuality = jpegQuality;
+	}
+
+	public Integer getUploadRateLimit() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 0;
+			}
+		return uploadRateLimit==null || uploadRateLimit<0 ? 0 : uploadRateLimit;
+	}
+
+	public void setUploadRateLimit(Integer uploadRateLimit) {
+		this.uploadRateLimit = uploadRateLimit;
+	}
+
+	public String getUploadRateSchedule() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return "";
+			}
+		return uploadRateSchedule;
+	}
+
+	public void setUploadRateSchedule(String uploadRateSchedule) {
+		this.uploadRateSchedule = uploadRateSchedule;
+	}
+
+	/**
+	 * Read the upload rate properties (uploadRateLimit, uploadRateSchedule) again
+	 * from the properties file. Values given on the command line are kept.
+	 *
+	 * @return false if the properties file cannot be read (values unchanged)
+	 */
+	public synchronized boolean reloadUploadRate() {
+		Properties prop = new Properties();
+		try {
+			InputStream in = new FileInputStream(propertyFile);
+			try {
+				prop.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		if(!overridden.contains("uploadRateLimit")){
+			uploadRateLimit = 0;
+			try {
+				uploadRateLimit = Integer.parseInt(prop.getProperty("uploadRateLimit").trim());
+			} catch (Exception e) {}
+		}
+		if(!overridden.contains("uploadRateSchedule"))
+			uploadRateSchedule = prop.getProperty("uploadRateSchedule")!=null ? prop.getProperty("uploadRateSchedule").trim() : "";
+		return true;
+	}
+
+	public Integer getMetricsPort() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return 0;
+			}
+		return metricsPort==null || metricsPort<0 ? 0 : metricsPort;
+	}
+
+	public void setMetricsPort(Integer metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	public String getLogFormat() {
+		if (!gotProperties)
+			try {
+				readProperties();
+			} catch (Syno2FlickrException e) {
+				return "text";
+			}
+		return logFormat;
+	}
+
+	public void setLogFormat(String logFormat) {
+		this.logFormat = logFormat;
+	}
+
+	/**
+	 * Is the output one JSON event per line (logFormat=json)
+	 */
+	public boolean isLogJson() {
+		return "json".equalsIgnoreCase(getLogFormat());
+	}
+
 	public String getPropertyFile() {
 		return propertyFile;
 	}
@@ -325,6 +695,21 @@ public class Syno2FlickrProperties {
 		this.propertyFile = propertyFile;
 	}
 	
+	/**
+	 * Get a state file stored next to the properties file
+	 * (ex: syno2flickr.journal for syno2flickr.properties)
+	 * 
+	 * @param extension extension of the state file (without dot)
+	 * @return the state file
+	 */
+	public File getStateFile(String extension) {
+		File file = new File(propertyFile).getAbsoluteFile();
+		String name = file.getName();
+		if(name.lastIndexOf('.')>0)
+			name = name.substring(0, name.lastIndexOf('.'));
+		return new File(file.getParentFile(), name+"."+extension);
+	}
+	
 	public void overrideProperties(String[] args) throws Syno2FlickrException{
 		readProperties();
 		for(String arg : args){
@@ -351,6 +736,7 @@ public class Syno2FlickrProperties {
 				
 				try {
 					callMethod(new Object[]{ value }, "set"+key.substring(0, 1).toUpperCase()+key.substring(1, key.length()));
+					overridden.add(key.substring(0, 1).toLowerCase()+key.substring(1, key.length()));
 					System.out.println("Property '"+key+"' was overriden with value: "+value);
 				} catch (Exception e) {
 					System.out.println("Warning: argument '"+key+"' was ignored.");
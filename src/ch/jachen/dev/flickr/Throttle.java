@@ -0,0 +1,160 @@
+package ch.jachen.dev.flickr;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload rate limit shared by all the uploads (token bucket)
+ *
+ * The rate is uploadRateLimit (KB/s, 0: unlimited), or the rate of the current
+ * time window of uploadRateSchedule, e.g. "08:00-23:00=1024,01:00-06:00=0".
+ * Both properties are read again (Syno2FlickrProperties) when the properties file
+ * changes, so the rate of a running watch mode can be changed without restarting.
+ * A value given on the command line is kept.
+ *
+ * @author jbrek
+ */
+public class Throttle {
+
+	private final static long reloadMillis = 30000; // delay between two checks of the properties file
+
+	private final File propertyFile; /// Properties file (rate read again when changed)
+	private final TimeZone timeZone = TimeZone.getDefault();
+	private long propertyFileModified;
+	private long lastReload;
+	private long defaultRate; /// Bytes per second outside windows (0: unlimited)
+	private List<Window> windows; /// Time windows with their own rate
+	private long rate; /// Current rate, bytes per second (0: unlimited)
+	private double tokens = 0; /// Bytes which can be sent without waiting (negative: already reserved)
+	private long refilled = System.nanoTime();
+
+	public Throttle(File propertyFile, int rateKB, String schedule) {
+		this.propertyFile = propertyFile;
+		this.propertyFileModified = propertyFile.lastModified();
+		this.lastReload = System.currentTimeMillis();
+		configure(rateKB, schedule);
+	}
+
+	/**
+	 * Wait until bytes can be sent
+	 * Called by the upload progress callback: waiting slows the upload down.
+	 *
+	 * @param bytes bytes sent since last call
+	 */
+	public void acquire(long bytes){
+		long wait;
+		synchronized (this) {
+			reloadIfChanged();
+			long now = System.nanoTime();
+			long currentRate = currentRate();
+			if(currentRate!=rate){
+				rate = currentRate;
+				tokens = 0;
+			}
+			if(rate<=0 || bytes<=0)
+				return;
+
+			// Refill (one second of burst at most), then reserve
+			tokens = Math.min(rate, tokens + (now - refilled) * rate / 1e9);
+			refilled = now;
+			tokens -= bytes;
+			if(tokens>=0)
+				return;
+			wait = (long) (-tokens * 1e9 / rate);
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized void configure(int rateKB, String schedule){
+		List<Window> windows = new ArrayList<Window>();
+		if(schedule!=null){
+			for(String w : schedule.split(",")){
+				if(w.trim().length()==0)
+					continue;
+				try {
+					windows.add(new Window(w.trim()));
+				} catch (Exception e) {
+					System.out.println("Warning: invalid upload rate window \""+w.trim()+"\" (expected HH:mm-HH:mm=KB/s). Ignored.");
+				}
+			}
+		}
+		this.defaultRate = Math.max(0, rateKB) * 1024L;
+		this.windows = windows;
+	}
+
+	/**
+	 * Rate of the current time window (local time)
+	 */
+	private long currentRate(){
+		long now = System.currentTimeMillis();
+		int minute = (int) (((now + timeZone.getOffset(now)) / 60000) % (24*60));
+		for(Window w : windows)
+			if(w.contains(minute))
+				return w.rate;
+		return defaultRate;
+	}
+
+	/**
+	 * Read the rate properties again if the properties file changed
+	 */
+	private void reloadIfChanged(){
+		long now = System.currentTimeMillis();
+		if(now - lastReload < reloadMillis)
+			return;
+		lastReload = now;
+		long modified = propertyFile.lastModified();
+		if(modified==propertyFileModified)
+			return;
+		propertyFileModified = modified;
+
+		if(!Syno2FlickrProperties.getInstance().reloadUploadRate())
+			return;
+		int rateKB = Syno2FlickrProperties.getInstance().getUploadRateLimit();
+		String schedule = Syno2FlickrProperties.getInstance().getUploadRateSchedule();
+		configure(rateKB, schedule);
+		System.out.println("Upload rate settings reloaded from "+propertyFile.getPath()+": uploadRateLimit="+
+						   (rateKB>0 ? rateKB+"KB/s" : "unlimited")+
+						   (schedule!=null && schedule.trim().length()>0 ? ", uploadRateSchedule="+schedule.trim() : "")+".");
+	}
+
+	/**
+	 * Time window HH:mm-HH:mm with its rate (may span midnight)
+	 */
+	private static class Window {
+
+		private final int start; // minute of the day
+		private final int end; // minute of the day (excluded)
+		private final long rate; // bytes per second (0: unlimited)
+
+		Window(String definition){
+			String[] w = definition.split("=");
+			String[] range = w[0].trim().split("-");
+			this.start = minuteOfDay(range[0]);
+			this.end = minuteOfDay(range[1]);
+			this.rate = Math.max(0, Long.parseLong(w[1].trim())) * 1024L;
+		}
+
+		boolean contains(int minute){
+			if(start==end)
+				return true; // whole day
+			if(start<end)
+				return minute>=start && minute<end;
+			return minute>=start || minute<end;
+		}
+
+		private static int minuteOfDay(String time){
+			String[] hm = time.trim().split(":");
+			int minute = Integer.parseInt(hm[0]) * 60 + (hm.length>1 ? Integer.parseInt(hm[1]) : 0);
+			if(minute<0 || minute>24*60)
+				throw new IllegalArgumentException(time);
+			return minute % (24*60);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package ch.jachen.dev.flickr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload journal
+ *
+ * Append-only file (next to the properties file) recording the state of each
+ * file of the sync folder: queued, uploaded (with the photo id), metadata done
+ * and archived. It is replayed at startup so that an interrupted run resumes
+ * where it stopped instead of uploading the same files again.
+ *
+ * Records are written in batches: the journal is synced to disk every second or
+ * every {@value #syncBatchSize} records. The journal is compacted at startup, and
+ * while running (watch mode) once its dead records (states replaced since, files
+ * archived) outnumber the live ones and {@value #minDeadRecords}.
+ *
+ * @author jbrek
+ */
+public class UploadJournal {
+
+	/**
+	 * State of a file
+	 */
+	public enum State {
+		QUEUED, UPLOADED, METADATA_DONE, ARCHIVED
+	}
+
+	private final static Charset charset = Charset.forName("UTF-8");
+	private final static int syncBatchSize = 64; // records written before syncing to disk
+	private final static long syncDelayMillis = 1000; // maximum delay before syncing to disk
+	private final static int minDeadRecords = 10000; // dead records before compacting a running journal
+
+	private final File journalFile;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>(); /// Last state by file path
+	private FileOutputStream out;
+	private Writer writer;
+	private int unsynced = 0;
+	private int records = 0; /// Records in the journal file
+	private ScheduledExecutorService syncer;
+
+	/**
+	 * Open the journal: replay and compact the existing records
+	 *
+	 * @param journalFile journal file (created if needed)
+	 * @throws IOException if the journal cannot be read or written
+	 */
+	public UploadJournal(File journalFile) throws IOException {
+		this.journalFile = journalFile;
+		replay();
+		records = compact();
+		open();
+		syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "journal");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		syncer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sync();
+			}
+		}, syncDelayMillis, syncDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the state of a file recorded by a previous run
+	 *
+	 * @param f file of the sync folder
+	 * @return the last state, null if unknown or if the file changed since
+	 */
+	public synchronized Entry get(File f){
+		Entry entry = entries.get(f.getAbsolutePath());
+		if(entry==null || entry.size!=f.length() || entry.lastModified!=f.lastModified())
+			return null;
+		return entry;
+	}
+
+	/**
+	 * Record a new state for a file
+	 *
+	 * @param f file of the sync folder
+	 * @param state new state
+	 * @param photoId id of the uploaded photo (null before upload)
+	 */
+	public synchronized void record(File f, State state, String photoId){
+		Entry entry = new Entry(state, photoId, f.length(), f.lastModified());
+		String path = f.getAbsolutePath();
+		if(state==State.ARCHIVED)
+			entries.remove(path);
+		else
+			entries.put(path, entry);
+		if(writer==null)
+			return;
+		try {
+			writer.write(entry.toLine(path));
+			records++;
+			if(records - entries.size() > Math.max(minDeadRecords, entries.size()))
+				compactRunning();
+			else if(++unsynced >= syncBatchSize)
+				sync();
+		} catch (IOException e) {
+			System.out.println("Warning: cannot write upload journal "+journalFile.getPath()+". Journal disabled.\n"+e.getMessage());
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Sync pending records to disk
+	 */
+	public synchronized void sync(){
+		if(writer==null || unsynced==0)
+			return;
+		try {
+			writer.flush();
+			out.getChannel().force(false);
+			unsynced = 0;
+		} catch (IOException e) {
+			System.out.println("Warning: cannot write upload journal "+journalFile.getPath()+". Journal disabled.\n"+e.getMessage());
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Sync and close the journal
+	 */
+	public synchronized void close(){
+		sync();
+		closeQuietly();
+	}
+
+	/**
+	 * Open the journal file for appending
+	 */
+	private void open() throws IOException {
+		out = new FileOutputStream(journalFile, true);
+		writer = new BufferedWriter(new OutputStreamWriter(out, charset));
+		unsynced = 0;
+	}
+
+	/**
+	 * Compact the journal while records are written (caller holds the lock)
+	 */
+	private void compactRunning() throws IOException {
+		writer.close();
+		writer = null;
+		records = compact();
+		open();
+	}
+
+	private void closeQuietly(){
+		if(syncer!=null)
+			syncer.shutdown();
+		try {
+			if(writer!=null)
+				writer.close();
+		} catch (IOException e) {}
+		writer = null;
+	}
+
+	/**
+	 * Read the existing records (the last state of a file wins)
+	 */
+	private void replay() throws IOException {
+		if(!journalFile.exists())
+			return;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), charset));
+		try {
+			String line;
+			while((line = reader.readLine())!=null){
+				String[] fields = line.split("\t", 5);
+				if(fields.length<5)
+					continue; // record partially written (crash)
+				try {
+					State state = State.valueOf(fields[0]);
+					String path = fields[4];
+					if(state==State.ARCHIVED)
+						entries.remove(path);
+					else
+						entries.put(path, new Entry(state, "-".equals(fields[1]) ? null : fields[1],
+													Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+				} catch (IllegalArgumentException e) {}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Rewrite the journal with the files still to resume only
+	 * (files queued but not uploaded have nothing to resume)
+	 *
+	 * @return number of records written
+	 */
+	private int compact() throws IOException {
+		File tmp = new File(journalFile.getPath()+".tmp");
+		FileOutputStream tmpOut = new FileOutputStream(tmp);
+		Writer tmpWriter = new BufferedWriter(new OutputStreamWriter(tmpOut, charset));
+		int written = 0;
+		try {
+			for(Map.Entry<String, Entry> e : entries.entrySet())
+				if(e.getValue().state!=State.QUEUED){
+					tmpWriter.write(e.getValue().toLine(e.getKey()));
+					written++;
+				}
+			tmpWriter.flush();
+			tmpOut.getChannel().force(false);
+		} finally {
+			tmpWriter.close();
+		}
+		Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return written;
+	}
+
+	/**
+	 * State of a file recorded in the journal
+	 */
+	public static class Entry {
+
+		private final State state;
+		private final String photoId;
+		private final long size;
+		private final long lastModified;
+
+		Entry(State state, String photoId, long size, long lastModified){
+			this.state = state;
+			this.photoId = photoId;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public State getState(){
+			return state;
+		}
+
+		public String getPhotoId(){
+			return photoId;
+		}
+
+		private String toLine(String path){
+			return state+"\t"+(photoId==null ? "-" : photoId)+"\t"+size+"\t"+lastModified+"\t"+path+"\n";
+		}
+	}
+}
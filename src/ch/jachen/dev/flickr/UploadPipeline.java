@@ -0,0 +1,939 @@
+package ch.jachen.dev.flickr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jickr.FlickrException;
+import org.jickr.Photo;
+import org.jickr.PhotoUpload;
+import org.jickr.Privacy;
+import org.jickr.RequestEvent;
+import org.jickr.RequestListener;
+import org.jickr.User;
+import org.jickr.UserLimitations;
+
+import ch.jachen.dev.util.EventLog;
+import ch.jachen.dev.util.FileUtils;
+import ch.jachen.dev.util.Metrics;
+import ch.jachen.dev.util.Node;
+
+/**
+ * Upload pipeline
+ *
+ * Stage one fans the uploads out over a bounded pool of workers (uploadConcurrency property).
+ * Submitting a file blocks while all workers are busy and the small waiting queue is full.
+ * Stage two (MetadataStage) sets license, sets and collections of the uploaded photos
+ * and then archives the files, so that upload workers never wait on these API calls.
+ * The monthly bandwidth is reserved when a file is submitted and given back if the upload fails.
+ * Each step is recorded in the upload journal: a file uploaded by an interrupted run is
+ * not uploaded again, only its remaining steps are run.
+ * When duplicates are skipped, files are first hashed on a separate pool: a content
+ * already uploaded (or being uploaded) is only linked to the sets of its folder.
+ *
+ * @author jbrek
+ */
+public class UploadPipeline {
+
+	private final static long denomMega=1024L*1024L;
+	private final static int maxWidth=75; // width of the light progress bar
+	private final static int codeUploadLimit = 6; // upload error: user exceeded upload limit
+	private final static int codeNoResponse = FlickrUpload.codeNoResponse; // no response from Flickr (network down)
+	private final static List<Integer> fatalCodes = Arrays.asList(codeUploadLimit, codeNoResponse, 96, 97, 98, 99, 100); // stop the upload (limit, network, authentication)
+	private final static List<Integer> transientCodes = Arrays.asList(codeNoResponse, 3, 105, 106); // retry the file (network, general failure, service unavailable)
+
+	private final User user; /// User Flickr authenticated
+	private final MetadataStage metadata; /// Sets, collections and license of uploaded photos
+	private final UploadJournal journal; /// Upload journal (null if unavailable)
+	private final HashIndex hashIndex; /// Hashes of uploaded contents (null if duplicates are not skipped)
+	private final String syncFolder; /// Folder synchronized
+	private final File archiveFolder; /// Archive folder (null if undefined)
+	private final File errorFolder; /// Error folder (null if undefined)
+	private final Privacy defaultPrivacy; /// Privacy of uploaded photos
+	private final FlickrUpload flickrUpload; /// Upload requests sent by the tool (null: sent by jickr)
+	private final AtomicInteger nbFilesFound; /// Number of files found in sync folder
+	private final int concurrency; /// Number of upload workers
+	private final int maxRetries; /// Retries of a file after a transient error
+	private final long retryDelayMillis; /// Delay before the first retry (doubled each time, with jitter)
+
+	private final boolean bandwidthUnlimited;
+	private final long bandwidthMaxBytes;
+	private final long filesizeMaxBytes;
+	private final long videosizeMaxBytes;
+	private final AtomicLong bandwidthRemainingBytes;
+
+	private final AtomicBoolean cancelled = new AtomicBoolean(false);
+	private final ExecutorService executor;
+	private final UploadQueue queue; /// Files waiting for a slot, by priority
+	private final ExecutorService queueExecutor; /// Takes the files from the queue
+	private final ExecutorService readExecutor; /// Hash and read ahead of the files before upload (null if none)
+	private final ImageTransformer transformer; /// Resize and recompression of images (null if none)
+	private final ExecutorService transformExecutor; /// Transformation of images (one thread per core)
+	private final ExecutorService archiveExecutor; /// Moves to archive and error folders
+	private final Map<String, List<UploadTask>> inFlight = new HashMap<String, List<UploadTask>>(); /// Copies waiting for a content being uploaded
+	private final Semaphore slots; /// Files in progress (read, transformed or sent) at most: the next file is taken from the queue when one is free
+	private final ProgressUpload progress; /// Animated progress bar (null if hidden)
+	private final Throttle throttle; /// Upload rate limit shared by the workers
+	private final Semaphore readAhead; /// Size (KB) of the files read ahead and not sent yet
+	private final int readAheadKB; /// 0: files not read ahead
+	private final Set<String> inProgress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); /// Files submitted and not finished yet
+	private volatile boolean cancelOnBandwidthLimit = true;
+	private final AtomicInteger noFile = new AtomicInteger(0); /// Number of the last file started (in upload order)
+	private final Metrics metrics = Metrics.getInstance();
+	private final EventLog log = EventLog.getInstance(); /// Events of each file (JSON output)
+
+	public UploadPipeline(User user, UserLimitations userLimits, PhotoOrganizer organizer, UploadJournal journal, HashIndex hashIndex,
+						  String syncFolder, File archiveFolder, File errorFolder, Privacy defaultPrivacy, int nbFilesFound,
+						  int concurrency, int readConcurrency, FlickrUpload flickrUpload) throws FlickrException {
+		this.user = user;
+		this.metadata = new MetadataStage(organizer);
+		this.journal = journal;
+		this.hashIndex = hashIndex;
+		this.syncFolder = syncFolder;
+		this.archiveFolder = archiveFolder;
+		this.errorFolder = errorFolder;
+		this.defaultPrivacy = defaultPrivacy;
+		this.flickrUpload = flickrUpload;
+		this.nbFilesFound = new AtomicInteger(nbFilesFound);
+		this.concurrency = concurrency;
+		this.maxRetries = Syno2FlickrProperties.getInstance().getUploadRetries();
+		this.retryDelayMillis = TimeUnit.SECONDS.toMillis(Syno2FlickrProperties.getInstance().getUploadRetryDelaySeconds());
+
+		// Get user limitations once (shared by all workers)
+		this.bandwidthUnlimited = userLimits.isBandwidthUnlimited();
+		this.bandwidthMaxBytes = userLimits.getBandwidthMaxBytes();
+		this.filesizeMaxBytes = userLimits.getFilesizeMaxBytes();
+		this.videosizeMaxBytes = userLimits.getVideosizeMaxBytes();
+		this.bandwidthRemainingBytes = new AtomicLong(userLimits.getBandwidthRemainingBytes());
+
+		// Files read ahead of the upload (in the system cache when sent), within a size budget
+		this.readAheadKB = (int) Math.min(Integer.MAX_VALUE, Syno2FlickrProperties.getInstance().getReadAheadMB()*1024L);
+		this.readAhead = new Semaphore(readAheadKB, true);
+
+		// Disk stage (hash, read ahead) and network stage (upload workers) on separate threads:
+		// workers + waiting queue as large as the number of workers (+ files being read)
+		boolean read = hashIndex!=null || readAheadKB>0;
+		this.executor = Executors.newFixedThreadPool(concurrency, newThreadFactory("upload"));
+		this.readExecutor = read ? Executors.newFixedThreadPool(readConcurrency, newThreadFactory("read")) : null;
+		this.archiveExecutor = Executors.newSingleThreadExecutor(newThreadFactory("archive"));
+
+		// Images resized or recompressed before upload, on their own pool (CPU bound)
+		this.transformer = newTransformer();
+		int transformConcurrency = Runtime.getRuntime().availableProcessors();
+		this.transformExecutor = transformer!=null ? Executors.newFixedThreadPool(transformConcurrency, newThreadFactory("transform")) : null;
+		this.slots = new Semaphore(concurrency*2 + (read ? readConcurrency : 0) + (transformer!=null ? transformConcurrency : 0));
+
+		// Files waiting for a slot, taken by priority
+		this.queue = new UploadQueue(UploadQueue.Order.parse(Syno2FlickrProperties.getInstance().getUploadOrder()));
+		this.queueExecutor = Executors.newSingleThreadExecutor(newThreadFactory("queue"));
+
+		// Upload rate shared by all workers
+		this.throttle = new Throttle(new File(Syno2FlickrProperties.getInstance().getPropertyFile()),
+									 Syno2FlickrProperties.getInstance().getUploadRateLimit(),
+									 Syno2FlickrProperties.getInstance().getUploadRateSchedule());
+
+		// One progress bar for all the files being sent
+		this.progress = Syno2FlickrProperties.getInstance().isShowUploadProgress() && log.isAnimated() ? new ProgressUpload(concurrency==1) : null;
+
+		// Gauges read when the metrics are shown
+		metrics.gauge("files_in_progress", new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return inProgress.size();
+			}
+		});
+		metrics.gauge("files_waiting", new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return queue.size();
+			}
+		});
+		metrics.gauge("read_ahead_bytes", new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return (readAheadKB - readAhead.availablePermits())*1024d;
+			}
+		});
+		if(!bandwidthUnlimited)
+			metrics.gauge("bandwidth_remaining_bytes", new Metrics.Gauge() {
+				@Override
+				public double value() {
+					return bandwidthRemainingBytes.get();
+				}
+			});
+
+		queueExecutor.execute(feeder);
+	}
+
+	/**
+	 * Resize and recompression of images (null if disabled)
+	 */
+	public ImageTransformer getTransformer(){
+		return transformer;
+	}
+
+	/**
+	 * Image transformer from the properties (null if disabled or if the temporary folder cannot be created)
+	 */
+	private ImageTransformer newTransformer(){
+		Syno2FlickrProperties props = Syno2FlickrProperties.getInstance();
+		long resizeOverPixels = props.getResizeOverMegapixels()*1000000L;
+		long recompressOverBytes = props.getRecompressOverMB()*denomMega;
+		if(resizeOverPixels==0 && recompressOverBytes==0)
+			return null;
+		try {
+			return new ImageTransformer(recompressOverBytes, resizeOverPixels, props.getJpegQuality()/100f, filesizeMaxBytes);
+		} catch (IOException e) {
+			System.out.println("Warning: temporary folder cannot be created. Images will not be resized nor recompressed.\n"+e.getMessage());
+			return null;
+		}
+	}
+
+	private static ThreadFactory newThreadFactory(final String name){
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name+"-"+count.incrementAndGet());
+			}
+		};
+	}
+
+	/**
+	 * Cancel the upload when the bandwidth limit is reached (default),
+	 * otherwise only skip the file exceeding it (watch mode)
+	 */
+	public void setCancelOnBandwidthLimit(boolean cancelOnBandwidthLimit){
+		this.cancelOnBandwidthLimit = cancelOnBandwidthLimit;
+	}
+
+	/**
+	 * New files found after the start of the upload (watch mode)
+	 */
+	public void addFilesFound(int count){
+		nbFilesFound.addAndGet(count);
+	}
+
+	/**
+	 * Queue a file to upload (taken by priority when a slot is free)
+	 * A file already submitted and not finished yet is ignored.
+	 *
+	 * @param node node of the file to upload
+	 * @return false if the upload was cancelled (no more file should be submitted)
+	 */
+	public boolean submit(Node node){
+		if(cancelled.get())
+			return false;
+
+		File f = node.getFile();
+		if(!inProgress.add(f.getAbsolutePath()))
+			return true;
+
+		// Already uploaded by a previous run
+		UploadJournal.Entry entry = journal!=null ? journal.get(f) : null;
+		if(entry!=null && entry.getState()!=UploadJournal.State.QUEUED){
+			noFile.incrementAndGet();
+			System.out.println("File "+f.getName()+" already sent (id: "+entry.getPhotoId()+"), resuming.");
+			log.event("resumed", f, "state", entry.getState().name().toLowerCase(Locale.ENGLISH), "photo_id", entry.getPhotoId());
+			if(entry.getState()==UploadJournal.State.UPLOADED)
+				metadata.submit(node, entry.getPhotoId(), archiver);
+			else
+				archive(node);
+			return true;
+		}
+
+		// Not a photo nor a video (sidecar, thumbnails database...)
+		if(MediaType.of(node)==MediaType.OTHER){
+			noFile.incrementAndGet();
+			System.out.println("File "+f.getName()+" is not a photo or a video. Skipped.");
+			log.event("skipped", f, "reason", "not_media");
+			metrics.counter("files_skipped_total").incrementAndGet();
+			finished(f);
+			return true;
+		}
+
+		metrics.counter("files_queued_total").incrementAndGet();
+		log.event("queued", f, "size", f.length(), "order", queue.getOrder().name().toLowerCase(Locale.ENGLISH));
+		if(!queue.add(node)){
+			// Upload finishing (no more file taken)
+			finished(f);
+			return false;
+		}
+		return !cancelled.get();
+	}
+
+	/**
+	 * Feed the workers with the queued files (run by the queue thread)
+	 * A file is taken once a slot is free, so that it is the file with the
+	 * highest priority at that time.
+	 */
+	private final Runnable feeder = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				while(true){
+					slots.acquire();
+					Node node = queue.take();
+					if(node==null){
+						slots.release();
+						return;
+					}
+					if(!start(node)){
+						// Cancelled: the files left are not sent
+						for(Node left : queue.clear())
+							finished(left.getFile());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	};
+
+	/**
+	 * Start the upload of a file taken from the queue (slot acquired)
+	 *
+	 * @return false if the upload is cancelled
+	 */
+	private boolean start(Node node){
+		File f = node.getFile();
+		if(cancelled.get()){
+			slots.release();
+			finished(f);
+			return false;
+		}
+
+		// Reserve bandwidth
+		if(!reserveBandwidth(bandwidthOf(node))){
+			slots.release();
+			log.event("skipped", f, "reason", "bandwidth_limit", "size", f.length());
+			metrics.counter("files_skipped_total").incrementAndGet();
+			finished(f);
+			System.out.println("Error: user " + user.getUserName() +
+							   " has reached his monthly bandwidth limit ("+
+							   bandwidthMaxBytes/denomMega+
+							   "MB). "+(cancelOnBandwidthLimit ? "Upload cancelled." : f.getName()+" skipped."));
+			if(!cancelOnBandwidthLimit)
+				return true;
+			cancelled.set(true);
+			return false;
+		}
+
+		if(journal!=null)
+			journal.record(f, UploadJournal.State.QUEUED, null);
+		int no = noFile.incrementAndGet();
+		if(readExecutor!=null)
+			readExecutor.execute(new ReadTask(node, no));
+		else
+			dispatch(new UploadTask(node, no, null, 0));
+		return true;
+	}
+
+	/**
+	 * Wait until all submitted files are uploaded and organized
+	 */
+	public void awaitTermination(){
+		try {
+			queue.close();
+			queueExecutor.shutdown();
+			while(!queueExecutor.awaitTermination(1, TimeUnit.MINUTES));
+			if(readExecutor!=null){
+				readExecutor.shutdown();
+				while(!readExecutor.awaitTermination(1, TimeUnit.MINUTES));
+			}
+			if(transformExecutor!=null){
+				transformExecutor.shutdown();
+				while(!transformExecutor.awaitTermination(1, TimeUnit.MINUTES));
+			}
+			executor.shutdown();
+			while(!executor.awaitTermination(1, TimeUnit.MINUTES));
+		} catch (InterruptedException e) {
+			queueExecutor.shutdownNow();
+			if(readExecutor!=null)
+				readExecutor.shutdownNow();
+			if(transformExecutor!=null)
+				transformExecutor.shutdownNow();
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		if(progress!=null)
+			progress.stop();
+		if(transformer!=null)
+			transformer.close();
+		metadata.awaitTermination();
+		try {
+			archiveExecutor.shutdown();
+			while(!archiveExecutor.awaitTermination(1, TimeUnit.MINUTES));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Is the file submitted and not finished yet
+	 */
+	public boolean isSubmitted(File f){
+		return inProgress.contains(f.getAbsolutePath());
+	}
+
+	/**
+	 * Is the upload cancelled (bandwidth limit reached or fatal error)
+	 */
+	public boolean isCancelled(){
+		return cancelled.get();
+	}
+
+	/**
+	 * Delay before a retry: exponential backoff with jitter
+	 * (half the delay is random so that the workers do not retry all at once)
+	 */
+	private long backoff(int attempt){
+		long delay = retryDelayMillis << Math.min(attempt-1, 10);
+		return delay/2 + ThreadLocalRandom.current().nextLong(delay/2 + 1);
+	}
+
+	/**
+	 * Bandwidth reserved for a file: its size, or the estimated size of an image over
+	 * the Flickr limit which is transformed (adjusted once transformed)
+	 */
+	private long bandwidthOf(Node node){
+		File f = node.getFile();
+		if(transformer!=null && f.length()>filesizeMaxBytes && MediaType.of(node)==MediaType.IMAGE)
+			return transformer.estimateSize(f);
+		return f.length();
+	}
+
+	private boolean reserveBandwidth(long bytes){
+		if(bandwidthUnlimited)
+			return true;
+		if(bandwidthRemainingBytes.addAndGet(-bytes) < 0){
+			bandwidthRemainingBytes.addAndGet(bytes);
+			return false;
+		}
+		return true;
+	}
+
+	private void releaseBandwidth(long bytes){
+		if(!bandwidthUnlimited)
+			bandwidthRemainingBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Upload a read file (transformed first if needed), unless its content is already uploaded or being uploaded
+	 */
+	private void dispatch(UploadTask task){
+		if(task.hash!=null){
+			String photoId;
+			synchronized (inFlight) {
+				photoId = hashIndex.getPhotoId(task.hash);
+				if(photoId==null){
+					List<UploadTask> waiting = inFlight.get(task.hash);
+					if(waiting!=null){
+						// Same content being uploaded: wait for it
+						task.releaseReadAhead();
+						waiting.add(task);
+						return;
+					}
+					inFlight.put(task.hash, new ArrayList<UploadTask>());
+				}
+			}
+			if(photoId!=null){
+				task.releaseReadAhead();
+				linkDuplicate(task.node, photoId);
+				return;
+			}
+		}
+		if(transformer!=null && transformer.accepts(task.node.getFile()))
+			transformExecutor.execute(new TransformTask(task));
+		else
+			executor.execute(task);
+	}
+
+	/**
+	 * Upload of a content is finished (photo id is null if failed or skipped):
+	 * the copies waiting for it are linked, or the next copy is uploaded instead
+	 */
+	private void contentDone(String hash, String photoId){
+		if(hash==null)
+			return;
+		List<UploadTask> waiting;
+		UploadTask next = null;
+		synchronized (inFlight) {
+			waiting = inFlight.remove(hash);
+			if(photoId!=null)
+				hashIndex.put(hash, photoId);
+			else if(waiting!=null && !waiting.isEmpty()){
+				next = waiting.remove(0);
+				inFlight.put(hash, waiting);
+			}
+		}
+		if(next!=null)
+			next.run(); // run by the current worker (no more task can be queued once stopping)
+		else if(waiting!=null)
+			for(UploadTask task : waiting)
+				linkDuplicate(task.node, photoId);
+	}
+
+	/**
+	 * Link a copy of a photo already uploaded to the sets of its folder
+	 */
+	private void linkDuplicate(Node node, String photoId){
+		try {
+			File f = node.getFile();
+			System.out.println("File "+f.getName()+" already sent (id: "+photoId+", same content). Added to sets only.");
+			log.event("duplicate", f, "photo_id", photoId);
+			metrics.counter("files_duplicate_total").incrementAndGet();
+			releaseBandwidth(f.length());
+			metadata.submit(node, photoId, true, linker);
+		} finally {
+			slots.release();
+		}
+	}
+
+	/**
+	 * Archive a copy once linked to its sets
+	 * A copy which could not be linked is not archived (linked again by the next run),
+	 * and a copy of a photo deleted on Flickr is uploaded.
+	 */
+	private final MetadataStage.Callback linker = new MetadataStage.Callback() {
+		@Override
+		public void done(Node node, String photoId, boolean complete) {
+			File f = node.getFile();
+			if(!complete){
+				System.out.println("Warning: file "+f.getName()+" could not be linked to photo (id: "+photoId+"). Not archived, linked again by the next run.");
+				finished(f);
+				return;
+			}
+			if(journal!=null)
+				journal.record(f, UploadJournal.State.METADATA_DONE, photoId);
+			log.event("metadata_done", f, "photo_id", photoId, "complete", true);
+			archive(node);
+		}
+
+		@Override
+		public void missing(Node node, String photoId) {
+			File f = node.getFile();
+			System.out.println("Photo (id: "+photoId+") of file "+f.getName()+" no longer exists on Flickr. The file is uploaded.");
+			log.event("duplicate_missing", f, "photo_id", photoId);
+			hashIndex.removePhoto(photoId);
+			finished(f);
+			if(!submit(node))
+				System.out.println("Warning: file "+f.getName()+" will be uploaded by the next run.");
+		}
+	};
+
+	/**
+	 * Archive the uploaded file once its metadata are done
+	 */
+	private final MetadataStage.Callback archiver = new MetadataStage.Callback() {
+		@Override
+		public void done(Node node, String photoId, boolean complete) {
+			// Incomplete metadata are retried by the next run (if the file is not archived)
+			if(complete && journal!=null)
+				journal.record(node.getFile(), UploadJournal.State.METADATA_DONE, photoId);
+			log.event("metadata_done", node.getFile(), "photo_id", photoId, "complete", complete);
+			archive(node);
+		}
+
+		@Override
+		public void missing(Node node, String photoId) {
+			finished(node.getFile()); // uploaded photos are not checked
+		}
+	};
+
+	/**
+	 * File processed (uploaded or not): it may be submitted again
+	 */
+	private void finished(File f){
+		inProgress.remove(f.getAbsolutePath());
+	}
+
+	/**
+	 * Move uploaded file to archive (archive worker), then the file is finished
+	 * A file which cannot be moved stays recorded as sent in the journal: the next run
+	 * tries to archive it again without sending it.
+	 */
+	private void archive(final Node node){
+		final File f = node.getFile();
+		if (archiveFolder==null || !archiveFolder.exists()){
+			finished(f);
+			return;
+		}
+		archiveExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(moveTo(archiveFolder, f)){
+						log.event("archived", f);
+						if(journal!=null)
+							journal.record(f, UploadJournal.State.ARCHIVED, null);
+					}
+				} finally {
+					finished(f);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Move a file to the same relative path into the target folder
+	 */
+	private boolean moveTo(File folder, File f){
+		try {
+			FileUtils.moveTo(new File(syncFolder), f, folder);
+			return true;
+		} catch (IOException e) {
+			System.out.println("Error: file "+f.getPath()+" cannot be moved to "+folder.getPath()+".\n"+e.getMessage());
+			log.event("move_failed", f, "folder", folder.getPath(), "error", e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Hash and read ahead of one file before upload (run by a reading worker)
+	 * A file is read once: while hashed, or only read if its hash is known.
+	 * A content already uploaded is not read.
+	 */
+	private class ReadTask implements Runnable {
+
+		private final Node node;
+		private final int no;
+
+		ReadTask(Node node, int no){
+			this.node = node;
+			this.no = no;
+		}
+
+		@Override
+		public void run() {
+			File f = node.getFile();
+			String hash = null;
+			int reservedKB = 0;
+			try {
+				if(cancelled.get())
+					return;
+				if(hashIndex!=null){
+					hash = hashIndex.getCachedHash(f);
+					if(hash!=null && hashIndex.getPhotoId(hash)!=null)
+						return;
+				}
+
+				// Read ahead only if the file fits the budget left (a larger file would
+				// only push the files read ahead out of the system cache)
+				if(readAheadKB>0){
+					long sizeKB = f.length()/1024 + 1;
+					if(sizeKB<=readAheadKB && readAhead.tryAcquire((int) sizeKB))
+						reservedKB = (int) sizeKB;
+				}
+				long start = System.nanoTime();
+				if(hashIndex!=null && hash==null)
+					hash = hashIndex.hash(f);
+				else if(reservedKB>0)
+					FileUtils.read(f, reservedKB*1024L);
+				metrics.histogram("read_seconds").since(start);
+			} catch (IOException e) {
+				if(hashIndex!=null && hash==null)
+					System.out.println("Warning: cannot read "+f.getName()+" to check duplicates.\n"+e.getMessage());
+			} finally {
+				dispatch(new UploadTask(node, no, hash, reservedKB));
+			}
+		}
+	}
+
+	/**
+	 * Resize or recompression of an image before upload (run by a transform worker)
+	 */
+	private class TransformTask implements Runnable {
+
+		private final UploadTask task;
+
+		TransformTask(UploadTask task){
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			File f = task.node.getFile();
+			try {
+				if(cancelled.get())
+					return;
+				long start = System.nanoTime();
+				task.transformed = transformer.transform(f);
+				metrics.histogram("transform_seconds").since(start);
+				if(task.transformed!=null){
+					long saved = f.length() - task.transformed.length();
+					metrics.counter("transform_saved_bytes_total").addAndGet(saved);
+					System.out.println("Image "+f.getName()+" transformed before upload ("+
+									   String.format("%.1fMB to %.1fMB", f.length()/(1024d*1024d), task.transformed.length()/(1024d*1024d))+").");
+					log.event("transformed", f, "size", f.length(), "sent_size", task.transformed.length(),
+							  "duration_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start));
+				}
+			} catch (IOException e) {
+				System.out.println("Warning: image "+f.getName()+" cannot be resized nor recompressed, the original is sent.\n"+e.getMessage());
+			} catch (RuntimeException e) {
+				// Image not supported by the ImageIO decoders (e.g. CMYK JPEG)
+				System.out.println("Warning: image "+f.getName()+" cannot be resized nor recompressed, the original is sent.\n"+e);
+			} catch (OutOfMemoryError e) {
+				// Heap left too small for the decoded image: the upload task still releases the slot and the read ahead
+				System.out.println("Warning: image "+f.getName()+" is too large to be resized or recompressed in memory, the original is sent.");
+			} finally {
+				executor.execute(task);
+			}
+		}
+	}
+
+	/**
+	 * Upload of one file (run by a worker)
+	 */
+	private class UploadTask implements Runnable {
+
+		private final Node node;
+		private final int no;
+		private final String hash; /// Content hash (null if not hashed)
+		private int readAheadKB; /// Read ahead budget held until the file is sent
+		private File transformed; /// Image resized or recompressed, sent instead of the file (null if none)
+		private long bandwidthBytes; /// Bandwidth reserved for the file
+
+		UploadTask(Node node, int no, String hash, int readAheadKB){
+			this.node = node;
+			this.no = no;
+			this.hash = hash;
+			this.readAheadKB = readAheadKB;
+			this.bandwidthBytes = bandwidthOf(node);
+		}
+
+		/**
+		 * The file read ahead is no longer needed
+		 */
+		void releaseReadAhead(){
+			readAhead.release(readAheadKB);
+			readAheadKB = 0;
+		}
+
+		@Override
+		public void run() {
+			String uploadedPhotoId = null;
+			try {
+				if(!cancelled.get())
+					uploadedPhotoId = upload();
+				else
+					releaseBandwidth(bandwidthBytes);
+			} finally {
+				if(transformed!=null)
+					transformer.release(transformed);
+				releaseReadAhead();
+				slots.release();
+				if(uploadedPhotoId==null)
+					finished(node.getFile());
+				contentDone(hash, uploadedPhotoId);
+			}
+		}
+
+		/**
+		 * @return id of the uploaded photo, null if not uploaded
+		 */
+		private String upload(){
+			final File f = node.getFile();
+			final File sent = transformed!=null ? transformed : f; // content sent
+
+			// Transformed image: less bandwidth used
+			if(transformed!=null){
+				releaseBandwidth(bandwidthBytes - sent.length());
+				bandwidthBytes = sent.length();
+			}
+
+			// Check file type
+			if (MediaType.of(node)==MediaType.IMAGE) {
+				if (sent.length() > filesizeMaxBytes){
+					System.out.println("Error: image \"" + f.getName()+ "\" exceeds the maximum accepted size (max. "+
+											filesizeMaxBytes/denomMega+"MB). Skipped.");
+					log.event("skipped", f, "reason", "too_large", "size", sent.length());
+					metrics.counter("files_skipped_total").incrementAndGet();
+					releaseBandwidth(bandwidthBytes);
+					return null;
+				}
+			} else {
+				if (sent.length() > videosizeMaxBytes){
+					System.out.println("Error: \"" + f.getName()+
+									   "\" exceeds the maximum accepted size (max. "+
+									   videosizeMaxBytes/denomMega+"MB). Skipped.");
+					log.event("skipped", f, "reason", "too_large", "size", sent.length());
+					metrics.counter("files_skipped_total").incrementAndGet();
+					releaseBandwidth(bandwidthBytes);
+					return null;
+				}
+			}
+
+			// Info (light progress bar is only shown for one upload at a time)
+			final boolean showNoCr = concurrency==1 && progress==null && log.isAnimated() && Syno2FlickrProperties.getInstance().isShowUploadProgressNoCR();
+			System.out.println((concurrency==1?"\n":"")+"Sending "+f.getName()+ " ("+(showNoCr || concurrency>1 ? "size: "+String.format("%.1fMB", sent.length()/(1024d*1024d))+", no: " : "")+no+(nbFilesFound.get()>=no ? "/"+nbFilesFound.get() : "")+")"+(concurrency==1?":":"..."));
+
+			String uploadedPhotoId;
+			int attempt = 0;
+			long start = System.nanoTime();
+			while(true){
+				log.event("sending", f, "attempt", attempt+1, "size", sent.length());
+				try {
+					uploadedPhotoId = send(sent, showNoCr);
+					break;
+				} catch (FlickrUpload.UploadException e) {
+
+					// Transient error: send the file again later
+					if(transientCodes.contains(e.getCode()) && attempt<maxRetries && !cancelled.get()){
+						attempt++;
+						metrics.counter("upload_retries_total").incrementAndGet();
+						long delay = backoff(attempt);
+						System.out.println("\nWarning: an error occured while uploading file "+f.getPath()+" ("+e.getMessage()+"). "+
+										   "Retry "+attempt+"/"+maxRetries+" in "+TimeUnit.MILLISECONDS.toSeconds(delay)+" seconds.");
+						log.event("retry", f, "attempt", attempt, "code", e.getCode(), "error", e.getMessage(), "delay_ms", delay);
+						try {
+							Thread.sleep(delay);
+							continue;
+						} catch (InterruptedException ie) {
+							Thread.currentThread().interrupt();
+						}
+					}
+
+					System.out.println("\nERROR: An error occured while uploading file "
+							+ f.getPath()+":\n"+e.getMessage());
+					metrics.counter("files_failed_total").incrementAndGet();
+					log.event("failed", f, "code", e.getCode(), "error", e.getMessage(), "attempts", attempt+1,
+							  "duration_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start));
+					releaseBandwidth(bandwidthBytes);
+
+					if (fatalCodes.contains(e.getCode()) || Thread.currentThread().isInterrupted()){
+						cancelled.set(true);
+						return null;
+					}
+					// Move file to error (archive worker)
+					if (errorFolder!=null && errorFolder.exists())
+						archiveExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								if(moveTo(errorFolder, f))
+									log.event("moved_to_error", f);
+							}
+						});
+					return null;
+				}
+			}
+
+			if(concurrency>1)
+				System.out.println("File "+f.getName()+" sent (id: "+uploadedPhotoId+").");
+
+			if(journal!=null)
+				journal.record(f, UploadJournal.State.UPLOADED, uploadedPhotoId);
+			metrics.counter("files_uploaded_total").incrementAndGet();
+			metrics.histogram("upload_seconds").since(start);
+			log.event("uploaded", f, "photo_id", uploadedPhotoId, "size", sent.length(), "attempts", attempt+1,
+					  "duration_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start));
+
+			// License, default set, set and collections, then move uploaded file to archive
+			metadata.submit(node, uploadedPhotoId, archiver);
+			return uploadedPhotoId;
+		}
+
+		/**
+		 * Send the content of the file (progress bar if enabled)
+		 *
+		 * @return id of the uploaded photo
+		 */
+		private String send(File sent, final boolean showNoCr) throws FlickrUpload.UploadException {
+			// Upload the content
+			if(showNoCr){
+				// No carriage return mode
+				System.out.print("< 0% ");
+				for(int i=0; i < maxWidth - "0% ".length() - " 100%".length(); i++)
+					System.out.print("-");
+				System.out.println(" 100% >");
+				System.out.print("< ");
+			}
+			final ProgressUpload.Transfer transfer = progress!=null ? progress.start() : null;
+			final AtomicLong bytesSent = metrics.counter("bytes_sent_total");
+			final FlickrUpload.Listener listener = new FlickrUpload.Listener() {
+				private int progressNoCr=0;
+				private long sent=0;
+
+				@Override
+				public void progress(long bytes, long total) {
+					// Rate limit: waiting here slows the sending down
+					throttle.acquire(bytes - sent);
+					bytesSent.addAndGet(bytes - sent);
+					sent = bytes;
+
+					if(transfer!=null){
+						// Counters read by the progress bar
+						transfer.update(bytes, total);
+					} else if(showNoCr){
+						// Show light animation (without carriage return)
+						if (bytes<total){
+							int ratio = (int) ((double)bytes / total * (double)maxWidth);
+							int steps = ratio - progressNoCr;
+							for(int i=0; i < steps; i++){
+								System.out.print("=");
+								System.out.flush();
+							}
+							progressNoCr += steps;
+						} else {
+							int steps = maxWidth - progressNoCr;
+							for(int i=0; i < steps; i++){
+								System.out.print("=");
+								System.out.flush();
+							}
+							System.out.println(" >");
+						}
+					}
+				}
+			};
+
+			boolean isPublic = defaultPrivacy.equals(Privacy.PUBLIC);
+			boolean isFriend = defaultPrivacy.equals(Privacy.FRIENDS) || defaultPrivacy.equals(Privacy.FRIENDSANDFAMILY);
+			boolean isFamily = defaultPrivacy.equals(Privacy.FAMILY) || defaultPrivacy.equals(Privacy.FRIENDSANDFAMILY);
+			boolean done = false;
+			long start = System.nanoTime();
+			try {
+				String photoId;
+				if(flickrUpload!=null){
+					// Body streamed from the file (Content-Length computed)
+					photoId = flickrUpload.send(sent, isPublic, isFriend, isFamily, listener);
+				} else {
+					// Body built by jickr (held in the heap)
+					PhotoUpload uploader = new PhotoUpload.Builder(sent).familyFlag(isFamily).friendFlag(isFriend).publicFlag(isPublic).build();
+					try {
+						photoId = Photo.uploadNewPhoto(uploader, new RequestListener() {
+							@Override
+							public void progressRequest(RequestEvent event) {
+								listener.progress(event.getProgress(), event.getTotalProgress());
+							}
+						});
+					} catch (FlickrException e) {
+						throw new FlickrUpload.UploadException(e.getCode(), e.getMessage());
+					}
+				}
+				done = true;
+				return photoId;
+			} finally {
+				metrics.histogram("flickr_call_seconds{method=\"upload\"}").since(start);
+				if(transfer!=null)
+					transfer.done(done);
+			}
+		}
+	}
+}
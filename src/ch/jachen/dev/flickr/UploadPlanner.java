@@ -0,0 +1,132 @@
+package ch.jachen.dev.flickr;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jickr.FlickrException;
+import org.jickr.UserLimitations;
+
+import ch.jachen.dev.util.Node;
+
+/**
+ * Upload plan
+ *
+ * When the monthly bandwidth is limited, chooses before any upload the files
+ * which fit in the remaining bandwidth, in upload order (uploadOrder property, see
+ * UploadQueue): e.g. oldest first, or smallest first (most files). A file which does not fit
+ * is skipped and the next ones are still tried. Files over the size limits,
+ * files which are not photos or videos, and files already sent by an
+ * interrupted run (no bandwidth used) are taken into account. An image over the
+ * size limit which is resized or recompressed before upload counts for its
+ * estimated size once transformed.
+ *
+ * @author jbrek
+ */
+public class UploadPlanner {
+
+	private final static double denomMega = 1024d*1024d;
+	private final static int maxSkippedShown = 20; // skipped files listed in the plan
+
+	private final long bandwidthRemainingBytes;
+	private final long filesizeMaxBytes;
+	private final long videosizeMaxBytes;
+	private final UploadJournal journal; /// Upload journal (null if unavailable)
+	private final UploadQueue.Order order;
+	private final ImageTransformer transformer; /// Transformation of the images before upload (null if none)
+
+	public UploadPlanner(UserLimitations userLimits, UploadJournal journal, UploadQueue.Order order, ImageTransformer transformer) throws FlickrException {
+		this(userLimits.getBandwidthRemainingBytes(), userLimits.getFilesizeMaxBytes(), userLimits.getVideosizeMaxBytes(), journal, order, transformer);
+	}
+
+	/**
+	 * Planner for given limits (bytes), images not transformed
+	 */
+	public UploadPlanner(long bandwidthRemainingBytes, long filesizeMaxBytes, long videosizeMaxBytes, UploadJournal journal, UploadQueue.Order order) {
+		this(bandwidthRemainingBytes, filesizeMaxBytes, videosizeMaxBytes, journal, order, null);
+	}
+
+	/**
+	 * Planner for given limits (bytes)
+	 */
+	public UploadPlanner(long bandwidthRemainingBytes, long filesizeMaxBytes, long videosizeMaxBytes, UploadJournal journal, UploadQueue.Order order,
+						 ImageTransformer transformer) {
+		this.bandwidthRemainingBytes = bandwidthRemainingBytes;
+		this.filesizeMaxBytes = filesizeMaxBytes;
+		this.videosizeMaxBytes = videosizeMaxBytes;
+		this.journal = journal;
+		this.order = order;
+		this.transformer = transformer;
+	}
+
+	/**
+	 * Choose the files to upload and show the plan
+	 *
+	 * @param files candidate files (in folder order)
+	 * @return files to upload, in upload order
+	 */
+	public List<Node> plan(Iterable<Node> files){
+		List<Node> candidates = new ArrayList<Node>();
+		List<Node> planned = new ArrayList<Node>();
+		List<Node> skipped = new ArrayList<Node>();
+		Map<Node, Long> estimated = new IdentityHashMap<Node, Long>(); // images over the limit counted once transformed
+		long skippedBytes = 0;
+
+		// Files already sent or not uploadable do not use bandwidth
+		for(Node node : files){
+			UploadJournal.Entry entry = journal!=null ? journal.get(node.getFile()) : null;
+			if(entry!=null && entry.getState()!=UploadJournal.State.QUEUED){
+				planned.add(node);
+				continue;
+			}
+			MediaType type = MediaType.of(node);
+			if(type==MediaType.IMAGE && node.getSize() > filesizeMaxBytes && transformer!=null){
+				long size = transformer.estimateSize(node.getFile());
+				if(size <= filesizeMaxBytes){
+					estimated.put(node, size);
+					candidates.add(node);
+					continue;
+				}
+			}
+			if(type==MediaType.OTHER || node.getSize() > (type==MediaType.IMAGE ? filesizeMaxBytes : videosizeMaxBytes)){
+				planned.add(node); // skipped with its reason by the upload
+				continue;
+			}
+			candidates.add(node);
+		}
+		int alreadyPlanned = planned.size();
+
+		// Fill the remaining bandwidth in upload order
+		candidates = UploadQueue.sort(candidates, order);
+		long remaining = bandwidthRemainingBytes;
+		long plannedBytes = 0;
+		for(Node node : candidates){
+			Long estimate = estimated.get(node);
+			long size = estimate!=null ? estimate : node.getSize();
+			if(size <= remaining){
+				planned.add(node);
+				remaining -= size;
+				plannedBytes += size;
+			} else {
+				skipped.add(node);
+				skippedBytes += size;
+			}
+		}
+
+		// Show the plan
+		System.out.println("\nUpload plan ("+(order==UploadQueue.Order.FOLDER ? "folder order" : order==UploadQueue.Order.FAIR ? "each folder in turn" : order.name().toLowerCase(Locale.ENGLISH)+" first")+"): "+(planned.size()-alreadyPlanned)+" file"+(planned.size()-alreadyPlanned>1?"s":"")+
+						   String.format(" (%.1fMB)", plannedBytes/denomMega)+" fit in the remaining monthly bandwidth"+
+						   String.format(" (%.1fMB)", bandwidthRemainingBytes/denomMega)+".");
+		if(!skipped.isEmpty()){
+			System.out.println("Warning: "+skipped.size()+" file"+(skipped.size()>1?"s":"")+String.format(" (%.1fMB)", skippedBytes/denomMega)+
+							   " will not be sent this month:");
+			for(int i=0; i<skipped.size() && i<maxSkippedShown; i++)
+				System.out.println("\t"+skipped.get(i).getFile().getPath());
+			if(skipped.size()>maxSkippedShown)
+				System.out.println("\t...");
+		}
+		return planned;
+	}
+}
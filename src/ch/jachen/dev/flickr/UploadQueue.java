@@ -0,0 +1,208 @@
+package ch.jachen.dev.flickr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import ch.jachen.dev.util.Node;
+
+/**
+ * Queue of the files waiting for an upload slot
+ *
+ * Files are taken by priority (uploadOrder property): in folder order (as found),
+ * oldest first, newest first, smallest first (most files per hour), or in turn
+ * from each folder of syncFolder (fair), so that a new folder does not wait behind
+ * years of older ones. Files added later (watch mode) take their place by the
+ * same priority. The queue is not bounded, so that the order applies to all the
+ * files found and the scan never waits: an entry only holds the node of the file
+ * (name, size, modification time) and its priority. The files being read or sent
+ * are bounded by the upload slots of UploadPipeline.
+ *
+ * @author jbrek
+ */
+public class UploadQueue {
+
+	public enum Order {
+		FOLDER, OLDEST, NEWEST, SMALLEST, FAIR;
+
+		/**
+		 * Order from its name (folder, oldest, newest, smallest or fair), FOLDER if unknown
+		 */
+		public static Order parse(String name){
+			try {
+				return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+			} catch (Exception e) {
+				return FOLDER;
+			}
+		}
+	}
+
+	private final Order order;
+	private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>();
+	private final Map<String, Folder> folders = new HashMap<String, Folder>(); /// Top-level folders with queued files, by name (fair)
+	private long turn = 0; /// Turn of the last file taken (fair)
+	private long sequence = 0; /// Order of arrival (same priority)
+	private boolean closed = false;
+
+	/**
+	 * @param order priority of the files
+	 */
+	public UploadQueue(Order order){
+		this.order = order;
+	}
+
+	/**
+	 * Files in the order they would be taken from the queue
+	 *
+	 * @param nodes files (in folder order)
+	 * @param order priority of the files
+	 * @return files sorted by priority
+	 */
+	public static List<Node> sort(Iterable<Node> nodes, Order order){
+		UploadQueue queue = new UploadQueue(order);
+		for(Node node : nodes)
+			queue.add(node);
+		return queue.clear();
+	}
+
+	public Order getOrder(){
+		return order;
+	}
+
+	/**
+	 * Add a file
+	 *
+	 * @return false if the queue is closed (file not added)
+	 */
+	public synchronized boolean add(Node node){
+		if(closed)
+			return false;
+		long key;
+		String name = null;
+		switch(order){
+		case OLDEST:
+			key = node.getLastModified();
+			break;
+		case NEWEST:
+			key = -node.getLastModified();
+			break;
+		case SMALLEST:
+			key = node.getSize();
+			break;
+		case FAIR:
+			// Next turn of its folder, not before the current turn (a folder idle for a while has no credit)
+			name = topFolder(node);
+			Folder folder = folders.get(name);
+			if(folder==null)
+				folders.put(name, folder = new Folder());
+			key = Math.max(folder.next, turn);
+			folder.next = key+1;
+			folder.queued++;
+			break;
+		default:
+			key = 0;
+		}
+		entries.add(new Entry(node, key, sequence++, name));
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Take the file with the highest priority, wait if none
+	 *
+	 * @return the file, null if the queue is closed and empty
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized Node take() throws InterruptedException {
+		while(entries.isEmpty() && !closed)
+			wait();
+		Entry entry = entries.poll();
+		if(entry==null)
+			return null;
+		if(order==Order.FAIR){
+			turn = entry.key;
+			removed(entry);
+		}
+		return entry.node;
+	}
+
+	/**
+	 * No more file will be added: take returns null once the queue is empty
+	 */
+	public synchronized void close(){
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Remove all the files waiting
+	 *
+	 * @return files removed (by priority)
+	 */
+	public synchronized List<Node> clear(){
+		List<Node> nodes = new ArrayList<Node>(entries.size());
+		Entry entry;
+		while((entry = entries.poll())!=null)
+			nodes.add(entry.node);
+		folders.clear();
+		return nodes;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * A file of a folder was taken: the folder is forgotten once it has no file queued
+	 */
+	private void removed(Entry entry){
+		Folder folder = folders.get(entry.folder);
+		if(folder!=null && --folder.queued<=0)
+			folders.remove(entry.folder);
+	}
+
+	/**
+	 * Name of the folder of syncFolder containing the file ("" for the files of syncFolder itself)
+	 * Nodes of the same folder may be distinct (watch mode), names are not.
+	 */
+	private static String topFolder(Node node){
+		Node top = node.getParent();
+		if(top==null || top.getParent()==null)
+			return "";
+		while(top.getParent().getParent()!=null)
+			top = top.getParent();
+		return top.getName();
+	}
+
+	/**
+	 * Top-level folder with queued files (fair)
+	 */
+	private static class Folder {
+		private long next; /// Next turn of the folder
+		private int queued; /// Files queued
+	}
+
+	private static class Entry implements Comparable<Entry> {
+
+		private final Node node;
+		private final long key; /// Priority (lowest first)
+		private final long sequence;
+		private final String folder; /// Name of its top-level folder (fair)
+
+		Entry(Node node, long key, long sequence, String folder){
+			this.node = node;
+			this.key = key;
+			this.sequence = sequence;
+			this.folder = folder;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			int c = Long.compare(key, o.key);
+			return c!=0 ? c : Long.compare(sequence, o.sequence);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package ch.jachen.dev.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output of the run: console text (default) or JSON lines (logFormat=json)
+ *
+ * In JSON mode each line printed becomes a "message" event, and the upload
+ * reports one event per state of each file (queued, uploaded, archived...)
+ * with its timings. Lines are written by a background thread, in batches, so
+ * that workers never wait on a slow disk.
+ * Animations (progress bars) are only shown in text mode on a terminal.
+ *
+ * @author jbrek
+ */
+public class EventLog {
+
+	private final static int maxBatch = 512; // lines written at once
+	private final static String end = "\u0000"; // stops the writer
+
+	private final static EventLog instance = new EventLog();
+
+	private volatile boolean json = false;
+	private PrintStream console; /// Output before the JSON mode
+	private BlockingQueue<String> queue;
+	private Thread writer;
+
+	public static EventLog getInstance(){
+		return instance;
+	}
+
+	/**
+	 * Start the JSON mode: all the lines printed are logged as events
+	 */
+	public synchronized void startJson(){
+		if(json)
+			return;
+		console = System.out;
+		queue = new LinkedBlockingQueue<String>();
+		writer = new Thread("log") {
+			@Override
+			public void run() {
+				write();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		try {
+			System.setOut(new PrintStream(new LineStream(), true, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			System.setOut(new PrintStream(new LineStream(), true));
+		}
+		json = true;
+
+		// Events left written on exit
+		Runtime.getRuntime().addShutdownHook(new Thread("log-shutdown") {
+			@Override
+			public void run() {
+				EventLog.this.stop();
+			}
+		});
+	}
+
+	/**
+	 * Write the events left and give the console back
+	 */
+	public synchronized void stop(){
+		if(!json)
+			return;
+		System.out.flush();
+		System.setOut(console);
+		json = false;
+		queue.add(end);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isJson(){
+		return json;
+	}
+
+	/**
+	 * Can animations be shown (text mode on a terminal)
+	 */
+	public boolean isAnimated(){
+		return !json && System.console()!=null;
+	}
+
+	/**
+	 * Event of a file (JSON mode only)
+	 *
+	 * @param event name of the event (e.g. uploaded)
+	 * @param file file concerned
+	 * @param fields other fields: name, value, name, value...
+	 */
+	public void event(String event, File file, Object... fields){
+		if(!json)
+			return;
+		StringBuilder sb = start(event);
+		sb.append(",\"file\":").append(quote(file.getPath()));
+		for(int i=0; i+1<fields.length; i+=2){
+			sb.append(',').append(quote(String.valueOf(fields[i]))).append(':');
+			Object value = fields[i+1];
+			if(value instanceof Number || value instanceof Boolean)
+				sb.append(value);
+			else
+				sb.append(value==null ? "null" : quote(value.toString()));
+		}
+		queue.add(sb.append('}').toString());
+	}
+
+	/**
+	 * Line printed on the console
+	 */
+	private void message(String line){
+		String text = line.trim();
+		if(text.length()==0)
+			return;
+		String level = text.startsWith("Warning") ? "warning" : text.toLowerCase(Locale.ENGLISH).startsWith("error") ? "error" : "info";
+		queue.add(start("message").append(",\"level\":\"").append(level).append("\",\"text\":").append(quote(text)).append('}').toString());
+	}
+
+	private static StringBuilder start(String event){
+		return new StringBuilder("{\"ts\":").append(System.currentTimeMillis()).append(",\"event\":").append(quote(event));
+	}
+
+	/**
+	 * Writer thread: waits for a line, then writes all the lines queued
+	 */
+	private void write(){
+		PrintStream out = console;
+		List<String> batch = new ArrayList<String>(maxBatch);
+		try {
+			while(true){
+				batch.add(queue.take());
+				queue.drainTo(batch, maxBatch-1);
+				StringBuilder sb = new StringBuilder();
+				boolean stop = false;
+				for(String line : batch){
+					if(line==end)
+						stop = true;
+					else
+						sb.append(line).append('\n');
+				}
+				batch.clear();
+				out.print(sb);
+				out.flush();
+				if(stop)
+					return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String quote(String s){
+		StringBuilder sb = new StringBuilder(s.length()+2).append('"');
+		for(int i=0; i<s.length(); i++){
+			char c = s.charAt(i);
+			switch(c){
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if(c<0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * System.out of the JSON mode: one message event per line
+	 * (a line rewritten with carriage returns only keeps its last text)
+	 */
+	private class LineStream extends OutputStream {
+
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private boolean carriageReturn = false; /// Last byte was \r (end of line if followed by \n)
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			if(b=='\n'){
+				flushLine();
+			} else if(b=='\r'){
+				carriageReturn = true;
+				return;
+			} else {
+				if(carriageReturn)
+					line.reset();
+				line.write(b);
+			}
+			carriageReturn = false;
+		}
+
+		private void flushLine() throws UnsupportedEncodingException {
+			message(line.toString("UTF-8"));
+			line.reset();
+		}
+	}
+}
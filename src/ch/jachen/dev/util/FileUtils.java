@@ -0,0 +1,137 @@
+package ch.jachen.dev.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class FileUtils {
+
+	private final static int bufferSize = 256*1024; // read buffer of each reading thread
+
+	private final static ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+	};
+
+	/**
+	 * Read buffer of the current thread (allocated once, reused by each read of the thread)
+	 */
+	public static ByteBuffer readBuffer(){
+		ByteBuffer buffer = buffers.get();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Read a file, so that it is in the system cache when read again
+	 *
+	 * @param f file to read
+	 * @param maxBytes bytes read at most (start of the file)
+	 * @return number of bytes read
+	 * @throws IOException if the file cannot be read
+	 */
+	public static long read(File f, long maxBytes) throws IOException {
+		ByteBuffer buffer = readBuffer();
+		long bytes = 0;
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			int n;
+			while(bytes<maxBytes){
+				buffer.limit((int) Math.min(buffer.capacity(), maxBytes-bytes));
+				if((n = channel.read(buffer))==-1)
+					break;
+				bytes += n;
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Stream a file through SHA-256 (NIO reads in the read buffer of the thread)
+	 *
+	 * @param f file to hash
+	 * @return SHA-256 of the content
+	 * @throws IOException if the file cannot be read
+	 */
+	public static byte[] sha256(File f) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buffer = readBuffer();
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			while(channel.read(buffer)!=-1){
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Move a file to the same relative path into another folder
+	 * The file is renamed atomically if possible, otherwise (other volume) copied
+	 * next to its target, checked (size and SHA-256 of the content) and then deleted.
+	 * A copy which cannot be checked is deleted.
+	 *
+	 * @param root folder the relative path is computed from
+	 * @param f file to move (in root)
+	 * @param folder target folder
+	 * @return the moved file
+	 * @throws IOException if the file cannot be moved (left in place)
+	 */
+	public static File moveTo(File root, File f, File folder) throws IOException {
+		Path source = f.getAbsoluteFile().toPath().normalize();
+		Path base = root.getAbsoluteFile().toPath().normalize();
+		Path relative = source.startsWith(base) ? base.relativize(source) : source.getFileName();
+		Path target = folder.getAbsoluteFile().toPath().resolve(relative);
+		Files.createDirectories(target.getParent());
+
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+			return target.toFile();
+		} catch (AtomicMoveNotSupportedException e) {
+			// Other volume: copy then delete
+		}
+
+		Path tmp = target.resolveSibling(target.getFileName()+".part");
+		try {
+			Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+			BasicFileAttributes s = Files.readAttributes(source, BasicFileAttributes.class);
+			BasicFileAttributes t = Files.readAttributes(tmp, BasicFileAttributes.class);
+			if(s.size()!=t.size() || !MessageDigest.isEqual(sha256(source.toFile()), sha256(tmp.toFile())))
+				throw new IOException("copy of "+source+" differs from the original");
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// No partial or wrong copy left next to the target
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException de) {
+				e.addSuppressed(de);
+			}
+			throw e;
+		}
+		Files.delete(source);
+		return target.toFile();
+	}
+}
@@ -0,0 +1,334 @@
+package ch.jachen.dev.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and histograms of a run
+ *
+ * A metric is named like a Prometheus series, labels included, e.g.
+ * flickr_call_seconds{method="photosets.addPhoto"}. Recording only updates
+ * atomic counters; the metrics are read as JSON (end of run report) or as
+ * Prometheus text (see MetricsExporter).
+ *
+ * @author jbrek
+ */
+public class Metrics {
+
+	private final static String prefix = "syno2flickr_";
+	private final static Charset charset = Charset.forName("UTF-8");
+	private final static double[] buckets = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600 }; // seconds
+
+	private final static Map<String, String> help = new HashMap<String, String>(); /// Description of each metric (Prometheus HELP)
+	static {
+		help.put("run_seconds", "Time since the start of the run");
+		help.put("bytes_sent_total", "Bytes of files sent to Flickr");
+		help.put("directories_listed_total", "Directories listed while scanning the sync folder");
+		help.put("directories_unchanged_total", "Directories unchanged since the last scan (listing reused)");
+		help.put("directories_verified_total", "Unchanged directories whose files were checked again (full verify)");
+		help.put("files_duplicate_total", "Files already on Flickr (same content), not uploaded again");
+		help.put("files_failed_total", "Files whose upload failed");
+		help.put("files_queued_total", "Files queued for upload");
+		help.put("files_skipped_total", "Files skipped (not a photo or a video, too large, bandwidth limit)");
+		help.put("files_uploaded_total", "Files uploaded");
+		help.put("metadata_retries_total", "Flickr calls of the metadata stage retried");
+		help.put("transform_saved_bytes_total", "Bytes saved by resizing or recompressing images");
+		help.put("upload_retries_total", "Uploads retried after a transient error");
+		help.put("bandwidth_remaining_bytes", "Monthly upload bandwidth left on the Flickr account");
+		help.put("files_in_progress", "Files being read, transformed or sent");
+		help.put("files_waiting", "Files waiting in the upload queue");
+		help.put("read_ahead_bytes", "Bytes of files read ahead and not sent yet");
+		help.put("scan_seconds", "Duration of the last scan of the sync folder");
+		help.put("directory_list_seconds", "Duration of the listing of a directory");
+		help.put("read_seconds", "Duration of the read of a file before its upload (hash, read ahead)");
+		help.put("transform_seconds", "Duration of the resizing or recompression of an image");
+		help.put("upload_seconds", "Duration of the upload of a file, retries included");
+		help.put("flickr_call_seconds", "Duration of the Flickr API calls, by method");
+	}
+
+	private final static Metrics instance = new Metrics();
+
+	private final long started = System.nanoTime();
+	private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	public static Metrics getInstance(){
+		return instance;
+	}
+
+	/**
+	 * Value read when the metrics are shown
+	 */
+	public interface Gauge {
+		double value();
+	}
+
+	/**
+	 * Counter (created if needed)
+	 */
+	public AtomicLong counter(String name){
+		AtomicLong counter = counters.get(name);
+		if(counter==null){
+			counters.putIfAbsent(name, new AtomicLong());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	/**
+	 * Histogram of durations (created if needed)
+	 */
+	public Histogram histogram(String name){
+		Histogram histogram = histograms.get(name);
+		if(histogram==null){
+			histograms.putIfAbsent(name, new Histogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Register a gauge (replaces the gauge with the same name)
+	 */
+	public void gauge(String name, Gauge gauge){
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Register a gauge with a fixed value
+	 */
+	public void gauge(String name, final double value){
+		gauge(name, new Gauge() {
+			@Override
+			public double value() {
+				return value;
+			}
+		});
+	}
+
+	/**
+	 * Current value of each counter and gauge, and count and sum of each histogram
+	 */
+	public Map<String, Number> values(){
+		Map<String, Number> values = new TreeMap<String, Number>();
+		for(Map.Entry<String, AtomicLong> e : counters.entrySet())
+			values.put(e.getKey(), e.getValue().get());
+		for(Map.Entry<String, Gauge> e : gauges.entrySet())
+			values.put(e.getKey(), e.getValue().value());
+		for(Map.Entry<String, Histogram> e : histograms.entrySet()){
+			values.put(series(e.getKey(), "_count", null), e.getValue().count.get());
+			values.put(series(e.getKey(), "_sum", null), e.getValue().sum());
+		}
+		values.put("run_seconds", seconds(System.nanoTime() - started));
+		return values;
+	}
+
+	/**
+	 * Metrics as JSON: counters and gauges by name, histograms with their percentiles
+	 */
+	public String toJson(){
+		StringBuilder sb = new StringBuilder("{\n");
+		sb.append("  \"run_seconds\": ").append(format(seconds(System.nanoTime() - started)));
+		for(Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(counters).entrySet())
+			sb.append(",\n  ").append(quote(e.getKey())).append(": ").append(e.getValue().get());
+		for(Map.Entry<String, Gauge> e : new TreeMap<String, Gauge>(gauges).entrySet())
+			sb.append(",\n  ").append(quote(e.getKey())).append(": ").append(format(e.getValue().value()));
+		for(Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(histograms).entrySet()){
+			Histogram h = e.getValue();
+			sb.append(",\n  ").append(quote(e.getKey())).append(": { \"count\": ").append(h.count.get())
+			  .append(", \"sum\": ").append(format(h.sum()))
+			  .append(", \"p50\": ").append(format(h.percentile(50)))
+			  .append(", \"p90\": ").append(format(h.percentile(90)))
+			  .append(", \"p99\": ").append(format(h.percentile(99)))
+			  .append(", \"max\": ").append(format(seconds(h.max.get()))).append(" }");
+		}
+		return sb.append("\n}\n").toString();
+	}
+
+	/**
+	 * Metrics in Prometheus text format (names prefixed with syno2flickr_)
+	 * Series of a metric are grouped after its HELP and TYPE lines; counters end
+	 * with _total, histograms have _bucket{le=...}, _sum and _count series.
+	 */
+	public String toPrometheus(){
+		StringBuilder sb = new StringBuilder();
+		family(sb, "run_seconds", "gauge");
+		sb.append(prefix).append("run_seconds ").append(format(seconds(System.nanoTime() - started))).append('\n');
+
+		String family = null;
+		for(Map.Entry<String, AtomicLong> e : byFamily(counters).entrySet()){
+			String name = series(e.getKey(), "", null);
+			if(!name.endsWith("_total"))
+				name = series(e.getKey(), "_total", null);
+			String base = base(name);
+			if(!base.equals(family))
+				family(sb, family = base, "counter");
+			sb.append(prefix).append(name).append(' ').append(e.getValue().get()).append('\n');
+		}
+		for(Map.Entry<String, Gauge> e : byFamily(gauges).entrySet()){
+			String base = base(e.getKey());
+			if(!base.equals(family))
+				family(sb, family = base, "gauge");
+			sb.append(prefix).append(e.getKey()).append(' ').append(format(e.getValue().value())).append('\n');
+		}
+		for(Map.Entry<String, Histogram> e : byFamily(histograms).entrySet()){
+			String base = base(e.getKey());
+			if(!base.equals(family))
+				family(sb, family = base, "histogram");
+			Histogram h = e.getValue();
+			long cumulated = 0;
+			for(int i=0; i<buckets.length; i++){
+				cumulated += h.counts.get(i);
+				sb.append(prefix).append(series(e.getKey(), "_bucket", "le=\""+format(buckets[i])+"\"")).append(' ').append(cumulated).append('\n');
+			}
+			sb.append(prefix).append(series(e.getKey(), "_bucket", "le=\"+Inf\"")).append(' ').append(h.count.get()).append('\n');
+			sb.append(prefix).append(series(e.getKey(), "_sum", null)).append(' ').append(format(h.sum())).append('\n');
+			sb.append(prefix).append(series(e.getKey(), "_count", null)).append(' ').append(h.count.get()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * HELP and TYPE lines of a metric
+	 */
+	private static void family(StringBuilder sb, String base, String type){
+		String description = help.get(base);
+		if(description==null)
+			description = base.replace('_', ' ');
+		sb.append("# HELP ").append(prefix).append(base).append(' ').append(description).append('\n');
+		sb.append("# TYPE ").append(prefix).append(base).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Series sorted by metric, then by labels (series of a metric together)
+	 */
+	private static <T> Map<String, T> byFamily(Map<String, T> series){
+		Map<String, T> sorted = new TreeMap<String, T>(new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				int c = base(o1).compareTo(base(o2));
+				return c!=0 ? c : o1.compareTo(o2);
+			}
+		});
+		sorted.putAll(series);
+		return sorted;
+	}
+
+	/**
+	 * Name of a metric without its labels
+	 */
+	private static String base(String name){
+		int brace = name.indexOf('{');
+		return brace<0 ? name : name.substring(0, brace);
+	}
+
+	/**
+	 * Write the JSON report
+	 */
+	public void writeJson(File file) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), charset);
+		try {
+			writer.write(toJson());
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Name of a series of a metric: suffix before the labels, label added
+	 */
+	private static String series(String name, String suffix, String label){
+		int brace = name.indexOf('{');
+		String base = base(name);
+		String labels = brace<0 ? "" : name.substring(brace+1, name.length()-1);
+		if(label!=null)
+			labels = labels.length()==0 ? label : labels+","+label;
+		return base+suffix+(labels.length()==0 ? "" : "{"+labels+"}");
+	}
+
+	private static double seconds(long nanos){
+		return nanos / 1e9;
+	}
+
+	private static String format(double value){
+		if(value==Math.rint(value) && Math.abs(value)<1e15)
+			return String.valueOf((long) value);
+		return String.valueOf(value);
+	}
+
+	private static String quote(String s){
+		return "\""+s.replace("\\", "\\\\").replace("\"", "\\\"")+"\"";
+	}
+
+	/**
+	 * Histogram of durations (fixed buckets from 5ms to 10min)
+	 */
+	public static class Histogram {
+
+		private final AtomicLongArray counts = new AtomicLongArray(buckets.length+1); /// Count by bucket (last: over the last bucket)
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumNanos = new AtomicLong();
+		private final AtomicLong max = new AtomicLong(); /// Nanoseconds
+
+		/**
+		 * Record a duration
+		 */
+		public void record(long duration, TimeUnit unit){
+			long n = unit.toNanos(duration);
+			double s = seconds(n);
+			int i = 0;
+			while(i<buckets.length && s>buckets[i])
+				i++;
+			counts.incrementAndGet(i);
+			count.incrementAndGet();
+			sumNanos.addAndGet(n);
+			long m;
+			while(n > (m = max.get()) && !max.compareAndSet(m, n));
+		}
+
+		/**
+		 * Record the duration since a start time (System.nanoTime)
+		 */
+		public void since(long startNanos){
+			record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+		}
+
+		public long getCount(){
+			return count.get();
+		}
+
+		private double sum(){
+			return seconds(sumNanos.get());
+		}
+
+		/**
+		 * Percentile, upper bound of its bucket in seconds (max if over the last bucket)
+		 */
+		private double percentile(int percentile){
+			long total = count.get();
+			if(total==0)
+				return 0;
+			long rank = (long) Math.ceil(percentile / 100d * total);
+			long cumulated = 0;
+			for(int i=0; i<buckets.length; i++){
+				cumulated += counts.get(i);
+				if(cumulated>=rank)
+					return Math.min(buckets[i], seconds(max.get()));
+			}
+			return seconds(max.get());
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package ch.jachen.dev.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Metrics of a running process: Prometheus text endpoint (GET /metrics on a
+ * local port) and JMX (MBean ch.jachen.dev.flickr:type=Metrics, one read-only
+ * attribute per series)
+ *
+ * @author jbrek
+ */
+public class MetricsExporter {
+
+	private final static String objectName = "ch.jachen.dev.flickr:type=Metrics";
+
+	private final Metrics metrics;
+	private HttpServer server;
+	private ObjectName registered;
+
+	public MetricsExporter(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Serve the metrics on localhost
+	 *
+	 * @param port port of the endpoint
+	 * @throws IOException if the port cannot be used
+	 */
+	public void startHttp(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] body = metrics.toPrometheus().getBytes("UTF-8");
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * Register the MBean of the metrics
+	 *
+	 * @throws JMException if it cannot be registered
+	 */
+	public void registerMBean() throws JMException {
+		registered = new ObjectName(objectName);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), registered);
+	}
+
+	public void stop(){
+		if(server!=null)
+			server.stop(0);
+		if(registered!=null)
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+			} catch (JMException e) {}
+	}
+
+	/**
+	 * Series as attributes (names of the series, values read when asked)
+	 */
+	private class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Number value = metrics.values().get(attribute);
+			if(value==null)
+				throw new AttributeNotFoundException(attribute);
+			return value.doubleValue();
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Number> values = metrics.values();
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes)
+				if(values.containsKey(attribute))
+					list.add(new Attribute(attribute, values.get(attribute).doubleValue()));
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(String name : metrics.values().keySet())
+				attributes.add(new MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false));
+			return new MBeanInfo(MetricsMBean.class.getName(), "Syno2Flickr metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+								 null, new MBeanOperationInfo[0], null);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) {
+			throw new UnsupportedOperationException("read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+	}
+}
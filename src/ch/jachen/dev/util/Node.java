@@ -2,38 +2,79 @@ package ch.jachen.dev.util;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
+/**
+ * Node of a tree of files
+ * Kept small for large folders: a file only holds its name (shared with the directory
+ * listing), its path is rebuilt from its parents when needed; leaves have no children list.
+ */
 public class Node {
-    File data;
-    Node parent;
-    List<Node> children;
+    File data; // file of the node (cached for directories, null for files of a scanned tree)
+    final String name;
+    final Node parent;
+    List<Node> children; // null while the node has no child
+    final boolean directory;
+    final long size;
+    final long lastModified;
+    final int level; // number of parents
+    byte kind; // kind of the file set by its user, 0 while not known (no extra heap: padding)
     
     public Node(File data) {
     	this(null, data);      
     }
 
     public Node(Node parent, File data) {
-    	this.parent = parent;
+    	this(parent, data, data.isDirectory(), data.length(), data.lastModified());
+    }
+
+    public Node(Node parent, File data, boolean directory, long size, long lastModified) {
+    	this(parent, data.getName(), directory, size, lastModified);
         this.data = data;
-        children = new ArrayList<Node>();            
+    }
+
+    /**
+     * Node of a directory entry (file built from the parent when needed)
+     */
+    Node(Node parent, String name, boolean directory, long size, long lastModified) {
+    	this.parent = parent;
+    	this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.level = parent==null ? 0 : parent.level+1;
     }
 
     public void addChild(Node node){
+    	if(children==null)
+    		children = new ArrayList<Node>(4);
     	this.children.add(node);
     }
     
     public Node getChild(File data) {
-        for(Node n : children)
-        	if(n.data.equals(data))
+        for(Node n : getChildren())
+        	if(n.getFile().equals(data))
                 return n;
         return null;
     }
     
     public File getFile(){
-    	return data;
+    	if(data!=null)
+    		return data;
+    	File file = new File(parent.getFile(), name);
+    	if(directory)
+    		data = file;
+    	return file;
+    }
+    
+    /**
+     * Name of the file (without building its path)
+     */
+    public String getName(){
+    	return name;
     }
     
     public Node getParent(){
@@ -41,20 +82,34 @@ public class Node {
     }
     
     public List<Node> getChildren(){
+    	if(children==null)
+    		return Collections.emptyList();
     	return children;
     }
     
     public Set<Node> getFiles(){  		
-    	return getFiles(this);
+    	Set<Node> nodes = new LinkedHashSet<Node>();
+    	addFiles(this, nodes);
+    	return nodes;
     }
     
-    private Set<Node> getFiles(Node node){
-    	Set<Node> nodes = new LinkedHashSet<Node>();
+    private static void addFiles(Node node, Set<Node> nodes){
     	if(!node.isDirectory())
     		nodes.add(node);
-    	for(Node n : node.getChildren())
-    		nodes.addAll(getFiles(n));
-    	return nodes;
+    	if(node.children!=null)
+    		for(Node n : node.children)
+    			addFiles(n, nodes);
+    }
+    
+    /**
+     * Number of files of this node (without building the set of files)
+     */
+    public int countFiles(){
+    	int count = isDirectory() ? 0 : 1;
+    	if(children!=null)
+    		for(Node n : children)
+    			count += n.countFiles();
+    	return count;
     }
     
     public List<Node> getSiblings(){
@@ -77,22 +132,36 @@ public class Node {
     }
     
     public boolean isDirectory(){
-    	return data.isDirectory();
+    	return directory;
+    }
+    
+    /**
+     * Size of the file when scanned (bytes)
+     */
+    public long getSize(){
+    	return size;
+    }
+    
+    /**
+     * Last modification of the file when scanned (ms)
+     */
+    public long getLastModified(){
+    	return lastModified;
     }
     
     public boolean hasChildren(){
-    	return !children.isEmpty();
+    	return children!=null && !children.isEmpty();
     }
     
     public boolean hasChildrenFiles(){
-    	for(Node n : children)
+    	for(Node n : getChildren())
     		if(!n.isDirectory())
     			return true;
     	return false;
     }
     
     public List<Node> getParents(){
-    	List<Node> parents = new ArrayList<Node>();
+    	List<Node> parents = new ArrayList<Node>(level+1);
     	Node current = this.getParent();
     	while(current!=null){
     		parents.add(current);
@@ -102,12 +171,17 @@ public class Node {
     }
     
     public int getLevel(){
-    	int level = 0;
-    	Node current = this.getParent();
-    	while(current!=null){
-    		current = current.getParent();
-    		level++;
-    	}
     	return level;
     }
+    
+    /**
+     * Kind of the file, as set by setKind (0: not known yet)
+     */
+    public byte getKind(){
+    	return kind;
+    }
+    
+    public void setKind(byte kind){
+    	this.kind = kind;
+    }
 }
\ No newline at end of file
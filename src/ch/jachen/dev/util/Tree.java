@@ -1,41 +1,115 @@
 package ch.jachen.dev.util;
 import java.io.File;
-import java.io.FileFilter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
-public class Tree{
+/**
+ * Tree of the files of a folder
+ * The folder is scanned lazily: iterating the files streams them as directories are
+ * listed, the whole tree is only built when needed (root, printing, exact count).
+ */
+public class Tree implements Iterable<Node>{
 
 	private Node root;
+	private boolean built = false;
 	private int maxDepth;
 	private Collection<File> excludeFiles;
+	private TreeScanner scanner;
+	private TreeSnapshot previous;
+	private Iterator<Node> started; // iterator started by isEmpty(), given by the next call to iterator()
 
     public Tree(File file, int maxDepth) {
         this(file, maxDepth, new HashSet<File>());
     }
     
     public Tree(File file, int maxDepth, Collection<File> excludeFiles) {
+        this(file, maxDepth, excludeFiles, null);
+    }
+    
+    /**
+     * Build the tree of a folder
+     * @param file root folder
+     * @param maxDepth maximum depth (0=files of root folder only)
+     * @param excludeFiles files and folders excluded
+     * @param snapshot snapshot of the previous scan (directories unchanged since are not listed again), may be null
+     */
+    public Tree(File file, int maxDepth, Collection<File> excludeFiles, TreeSnapshot snapshot) {
+    	this(file, maxDepth, excludeFiles, snapshot, 1);
+    }
+    
+    /**
+     * Build the tree of a folder
+     * @param file root folder
+     * @param maxDepth maximum depth (0=files of root folder only)
+     * @param excludeFiles files and folders excluded
+     * @param snapshot snapshot of the previous scan (directories unchanged since are not listed again), may be null
+     * @param parallelism number of directories listed at the same time
+     */
+    public Tree(File file, int maxDepth, Collection<File> excludeFiles, TreeSnapshot snapshot, int parallelism) {
         this.root = new Node(file);
         this.maxDepth = maxDepth;
         this.excludeFiles = excludeFiles;
-        populate();
+        this.previous = snapshot;
+        this.scanner = new TreeScanner(snapshot, parallelism);
     }
     
+    /**
+     * Root of the tree (the whole tree is built on first call)
+     */
     public Node getRoot(){
+    	if(!built)
+    		populate();
     	return root;
     }
+    
+    /**
+     * Folder of the tree
+     */
+    public File getFolder(){
+    	return root.data;
+    }
+    
+    /**
+     * Is the whole tree built (exact count of files known)
+     */
+    public boolean isBuilt(){
+    	return built;
+    }
 
+    /**
+     * Is there no file in the tree (scanned until the first file is found: the scan
+     * is continued by the next iteration, not started again)
+     */
     public boolean isEmpty() {
-        return root==null || root.getFiles().isEmpty();
+    	if(started==null)
+    		started = iterator();
+        return !started.hasNext();
+    }
+    
+    /**
+     * Files of the tree, directories first then by name, streamed as directories are
+     * listed if the tree is not built
+     */
+    @Override
+    public Iterator<Node> iterator(){
+    	if(started!=null){
+    		Iterator<Node> iterator = started;
+    		started = null;
+    		return iterator;
+    	}
+    	if(built)
+    		return root.getFiles().iterator();
+    	return new FileIterator();
     }
     
     public int getMaxDepth(){
-    	return getMaxDepth(root);
+    	return getMaxDepth(getRoot());
     }
     
     private int getMaxDepth(Node node){
@@ -49,47 +123,65 @@ public class Tree{
     }
 
     private void populate() {
-    	root.children = new ArrayList<Node>();
+    	started = null; // files iterated from the built tree
+    	scanner.prefetch(root.data, maxDepth, excludeFiles);
         addTree(root, 0, maxDepth);
+        built = true;
+        scanner.close();
     }
     
-    private final FileFilter filter = new FileFilter() {
-		@Override
-		public boolean accept(File pathname) {				
-			try {
-				for(File f : excludeFiles)
-					if(f.equals(pathname))
-						return false;
-				return !pathname.isHidden() && !pathname.getName().startsWith("@") && !pathname.getName().startsWith(".");
-			} catch (Exception e) {	return false; }
-		}
-	};
+    /**
+     * Node of a file of the tree folder with its parent nodes, without adding it to the tree
+     * (files found after the tree was built)
+     * @param file file in the tree folder
+     * @param size size of the file
+     * @param lastModified last modification of the file
+     * @return the node, null if the file is not in the folder or deeper than the maximum depth
+     */
+    public Node nodeOf(File file, long size, long lastModified){
+    	List<File> parents = new ArrayList<File>();
+    	File current = file.getParentFile();
+    	while(current!=null && !current.equals(root.data)){
+    		parents.add(0, current);
+    		current = current.getParentFile();
+    	}
+    	if(current==null || parents.size()>maxDepth)
+    		return null;
+    	Node parent = root;
+    	for(File dir : parents)
+    		parent = new Node(parent, dir, true, 0, 0);
+    	return new Node(parent, file, false, size, lastModified);
+    }
+    
+    /**
+     * End of the scan (iteration stopped before the last file): directories are no
+     * longer listed ahead
+     */
+    public void close(){
+    	scanner.close();
+    }
+    
+    /**
+     * Snapshot of the directories listed while building this tree
+     */
+    public TreeSnapshot getSnapshot(){
+    	return scanner.getSnapshot();
+    }
     
     private boolean addTree(Node root, int depth, int maxDepth) {
-	    List<File> children = Arrays.asList(root.data.listFiles(filter));
-	    Collections.sort(children, new Comparator<File>() {
-			@Override
-			public int compare(File o1, File o2) {
-				if(o1.isDirectory() && o2.isDirectory() ||
-						o1.isFile() && o2.isFile())
-					return o1.getName().compareTo(o2.getName());
-				else if(!o1.isDirectory())
-					return 1;
-				else 
-					return -1;
-			}
-		});
-	    if (children != null && depth<=maxDepth) {
+	    if (depth<=maxDepth) {
 	    	boolean hasAnyFile = false;
-	        for (File child : children) {
-	        	Node childNode = new Node(root, child);
-	        	if(child.isDirectory()){
+	        for (TreeSnapshot.Entry entry : scanner.list(root.getFile())) {
+	        	if(!excludeFiles.isEmpty() && excludeFiles.contains(new File(root.getFile(), entry.name)))
+	        		continue;
+	        	Node childNode = new Node(root, entry.name, entry.directory, entry.size, entry.lastModified);
+	        	if(entry.directory){
 	        		if(addTree(childNode, depth+1, maxDepth)){
-	    	        	root.children.add(childNode);
+	    	        	root.addChild(childNode);
 	    	        	hasAnyFile=true;
 	        		}
 	        	}else{
-		        	root.children.add(childNode);
+		        	root.addChild(childNode);
 		        	hasAnyFile=true;
 	        	}
 	        }
@@ -99,31 +191,58 @@ public class Tree{
 	}
     
     public int countFiles(){
-    	return root.getFiles().toArray().length;
+    	return getRoot().countFiles();
+    }
+    
+    /**
+     * Number of files without scanning the folder: exact if the tree is built,
+     * otherwise counted in the snapshot of the previous scan
+     * @return number of files, -1 if unknown (no previous scan)
+     */
+    public int estimateFiles(){
+    	if(built)
+    		return countFiles();
+    	if(previous==null || previous.get(root.data)==null)
+    		return -1;
+    	return estimateFiles(root.data, 0);
+    }
+    
+    private int estimateFiles(File dir, int depth){
+    	TreeSnapshot.Directory directory = previous.get(dir);
+    	if(directory==null || depth>maxDepth)
+    		return 0;
+    	int count = 0;
+    	for(TreeSnapshot.Entry entry : directory.entries){
+    		File child = new File(dir, entry.name);
+    		if(excludeFiles.contains(child))
+    			continue;
+    		count += entry.directory ? estimateFiles(child, depth+1) : 1;
+    	}
+    	return count;
     }
 
     public void print() {
-        print(this.root);
+        print(getRoot());
     }
 
     private void print(Node n) {
         if(n==null)
             return;
-        for(Node c : n.children) {
-            System.out.println(c.data + " ");
+        for(Node c : n.getChildren()) {
+            System.out.println(c.getFile() + " ");
             print(c);
         }
     }
     
     public void printTree() {
         StringBuilder sb = new StringBuilder();
-        printDirectoryTree(this.root, -1, sb);
+        printDirectoryTree(getRoot(), -1, sb);
         System.out.println(sb.toString());    	
     }
 
     public void printTree(int maxParentsLevel) {
         StringBuilder sb = new StringBuilder();
-        Node node = filesAndParents(this.root, maxParentsLevel);
+        Node node = filesAndParents(getRoot(), maxParentsLevel);
         printDirectoryTree(node, -1, sb);
         System.out.println(sb.toString());    	
     }
@@ -137,12 +256,12 @@ public class Tree{
 	        	sb.append("+--");
 	        else 
 	        	sb.append("  ");
-	        sb.append(n.getFile().getName());
+	        sb.append(n.getName());
 	        sb.append("/");
 	        sb.append("\n");
         }
-        for(Node c : n.children) {
-        	if(c.getFile().isDirectory())
+        for(Node c : n.getChildren()) {
+        	if(c.isDirectory())
         		printDirectoryTree(c, level+1, sb);
         	else printNodeFile(c, level+1, sb);
         }
@@ -172,7 +291,7 @@ public class Tree{
 	        sb.append("+--");
     	} else
     		sb.append("  ");
-        sb.append(node.getFile().getName());
+        sb.append(node.getName());
         sb.append("\n");
     }
     
@@ -186,6 +305,74 @@ public class Tree{
         return sb.toString();
     }
 
+    /**
+     * Depth-first iterator listing directories only when reached
+     * (files in the same order as the built tree)
+     */
+    private class FileIterator implements Iterator<Node> {
+    	
+    	private final Deque<Frame> stack = new ArrayDeque<Frame>();
+    	private Node next;
+    	
+    	FileIterator(){
+    		scanner.prefetch(root.data, maxDepth, excludeFiles);
+    		if(maxDepth>=0)
+    			stack.push(new Frame(root, 0));
+    	}
+    	
+		@Override
+		public boolean hasNext() {
+			while(next==null && !stack.isEmpty()){
+				Frame frame = stack.peek();
+				if(frame.index>=frame.entries.size()){
+					stack.pop();
+					continue;
+				}
+				TreeSnapshot.Entry entry = frame.entries.get(frame.index++);
+	        	if(!excludeFiles.isEmpty() && excludeFiles.contains(new File(frame.node.getFile(), entry.name)))
+	        		continue;
+	        	Node childNode = new Node(frame.node, entry.name, entry.directory, entry.size, entry.lastModified);
+	        	if(!entry.directory)
+	        		next = childNode;
+	        	else if(frame.depth<maxDepth)
+	        		stack.push(new Frame(childNode, frame.depth+1));
+			}
+			if(next==null)
+				scanner.close(); // end of the scan
+			return next!=null;
+		}
+
+		@Override
+		public Node next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			Node node = next;
+			next = null;
+			return node;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+    }
+    
+    /**
+     * Directory being iterated
+     */
+    private class Frame {
+    	private final Node node;
+    	private final int depth;
+    	private final List<TreeSnapshot.Entry> entries;
+    	private int index = 0;
+    	
+    	Frame(Node node, int depth){
+    		this.node = node;
+    		this.depth = depth;
+    		this.entries = scanner.list(node.getFile());
+    	}
+    }
+
     public static void main(String[] args) {
         Tree t = new Tree(new File(args[0]), 3);
         t.print();
@@ -0,0 +1,242 @@
+package ch.jachen.dev.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lists directories reading the attributes of each entry only once (Files.walkFileTree).
+ * A directory unchanged since the previous snapshot is not listed again: its entries
+ * are taken from the snapshot as they are. A file edited in place does not change the
+ * modification time of its directory, so the attributes of the files of an unchanged
+ * directory are read again once its listing is older than {@value #verifyIntervalMillis} ms.
+ * With a parallelism above 1, the directories of a folder can be listed ahead on a
+ * ForkJoin pool (slow network volumes): list() then waits for the listing of the directory.
+ * The pool is shut down by close() at the end of the scan.
+ */
+public class TreeScanner {
+
+	// A listing made less than this after the last change of the directory is not trusted
+	// (file systems with a coarse modification time)
+	private final static long lastModifiedGranularity = 2000;
+	// Age of the listing of an unchanged directory before the attributes of its files are read again
+	private final static long verifyIntervalMillis = 24*3600*1000L;
+
+	private final TreeSnapshot previous;
+	private final TreeSnapshot current = new TreeSnapshot();
+	private final ForkJoinPool pool; // null if directories are listed one at a time
+	private final Map<String, ListTask> tasks = new ConcurrentHashMap<String, ListTask>(); // listings ahead by directory
+	private boolean prefetched = false;
+
+	public TreeScanner(TreeSnapshot previous) {
+		this(previous, 1);
+	}
+
+	/**
+	 * @param previous snapshot of the previous scan (may be null)
+	 * @param parallelism number of directories listed at the same time
+	 */
+	public TreeScanner(TreeSnapshot previous, int parallelism) {
+		this.previous = previous;
+		this.pool = parallelism>1 ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/**
+	 * Start listing a folder and its directories ahead (once, if parallel)
+	 * @param dir folder
+	 * @param maxDepth depth of the directories to list (0=folder only)
+	 * @param excludes directories not listed
+	 */
+	public synchronized void prefetch(File dir, int maxDepth, Collection<File> excludes){
+		if(pool==null || prefetched || maxDepth<0 || pool.isShutdown())
+			return;
+		prefetched = true;
+		ListTask task = new ListTask(dir, maxDepth, excludes);
+		tasks.put(dir.getPath(), task);
+		pool.execute(task);
+	}
+
+	/**
+	 * End of the scan: listings ahead cancelled and pool shut down
+	 * (directories listed again are then read one at a time)
+	 */
+	public void close(){
+		if(pool==null)
+			return;
+		pool.shutdownNow();
+		tasks.clear();
+	}
+
+	/**
+	 * Snapshot of the directories listed by this scanner
+	 */
+	public TreeSnapshot getSnapshot(){
+		return current;
+	}
+
+	/**
+	 * List the visible entries of a directory, directories first then by name
+	 * @param dir directory
+	 * @return entries with their attributes (empty if the directory cannot be read)
+	 */
+	public List<TreeSnapshot.Entry> list(File dir){
+		ListTask task = pool!=null && !pool.isShutdown() ? tasks.get(dir.getPath()) : null;
+		if(task!=null)
+			return task.await();
+		return read(dir);
+	}
+
+	/**
+	 * List a directory now
+	 */
+	private List<TreeSnapshot.Entry> read(File dir){
+		Path path = dir.toPath();
+		long lastModified;
+		try {
+			lastModified = Files.getLastModifiedTime(path).toMillis();
+		} catch (IOException e) {
+			return Collections.emptyList();
+		}
+
+		// Unchanged since previous snapshot
+		TreeSnapshot.Directory cached = previous!=null ? previous.get(dir) : null;
+		if(cached!=null && cached.lastModified==lastModified && cached.scanned-lastModified > lastModifiedGranularity){
+			Metrics.getInstance().counter("directories_unchanged_total").incrementAndGet();
+			TreeSnapshot.Directory directory = System.currentTimeMillis()-cached.scanned < verifyIntervalMillis ? cached : refresh(path, cached);
+			current.put(dir, directory);
+			return directory.entries;
+		}
+
+		// List directory
+		long scanned = System.currentTimeMillis();
+		long start = System.nanoTime();
+		final List<TreeSnapshot.Entry> entries = new ArrayList<TreeSnapshot.Entry>();
+		try {
+			Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					String name = file.getFileName().toString();
+					if(name.startsWith(".") || name.startsWith("@") ||
+							(attrs instanceof DosFileAttributes && ((DosFileAttributes) attrs).isHidden()))
+						return FileVisitResult.CONTINUE;
+					if(attrs.isSymbolicLink()){
+						try {
+							attrs = Files.readAttributes(file, BasicFileAttributes.class);
+						} catch (IOException e) {
+							return FileVisitResult.CONTINUE; // broken link
+						}
+					}
+					entries.add(new TreeSnapshot.Entry(name, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis()));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			return Collections.emptyList();
+		}
+		Collections.sort(entries, TreeSnapshot.Entry.order);
+		Metrics.getInstance().histogram("directory_list_seconds").since(start);
+		Metrics.getInstance().counter("directories_listed_total").incrementAndGet();
+		TreeSnapshot.Directory directory = new TreeSnapshot.Directory(lastModified, scanned, entries);
+		current.put(dir, directory);
+		return directory.entries;
+	}
+
+	/**
+	 * Listing of an unchanged directory with the current size and modification time of its files
+	 * (listing time reset: verified)
+	 */
+	private TreeSnapshot.Directory refresh(Path path, TreeSnapshot.Directory cached){
+		long scanned = System.currentTimeMillis();
+		List<TreeSnapshot.Entry> entries = new ArrayList<TreeSnapshot.Entry>(cached.entries.size());
+		Metrics.getInstance().counter("directories_verified_total").incrementAndGet();
+		for(TreeSnapshot.Entry entry : cached.entries){
+			if(entry.directory){
+				entries.add(entry);
+				continue;
+			}
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(path.resolve(entry.name), BasicFileAttributes.class);
+			} catch (IOException e) {
+				continue; // deleted since
+			}
+			if(attrs.size()==entry.size && attrs.lastModifiedTime().toMillis()==entry.lastModified)
+				entries.add(entry);
+			else
+				entries.add(new TreeSnapshot.Entry(entry.name, false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+		}
+		return new TreeSnapshot.Directory(cached.lastModified, scanned, entries);
+	}
+
+	/**
+	 * Listing of a directory ahead, then of its directories (forked, not awaited)
+	 */
+	private class ListTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File dir;
+		private final int depth; // depth of directories still to list below this one
+		private final Collection<File> excludes;
+		private final CountDownLatch listed = new CountDownLatch(1);
+		private volatile List<TreeSnapshot.Entry> entries = Collections.emptyList();
+
+		ListTask(File dir, int depth, Collection<File> excludes){
+			this.dir = dir;
+			this.depth = depth;
+			this.excludes = excludes;
+		}
+
+		@Override
+		protected void compute() {
+			// Directories registered before the listing is released (else listed again by list())
+			List<ListTask> children = new ArrayList<ListTask>();
+			try {
+				entries = read(dir);
+				if(depth>0)
+					for(TreeSnapshot.Entry entry : entries){
+						File child = new File(dir, entry.name);
+						if(!entry.directory || excludes.contains(child))
+							continue;
+						ListTask task = new ListTask(child, depth-1, excludes);
+						tasks.put(child.getPath(), task);
+						children.add(task);
+					}
+			} finally {
+				listed.countDown();
+			}
+			for(ListTask task : children)
+				task.fork();
+		}
+
+		List<TreeSnapshot.Entry> await(){
+			try {
+				listed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return entries;
+		}
+	}
+}
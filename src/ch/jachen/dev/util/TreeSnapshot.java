@@ -0,0 +1,164 @@
+package ch.jachen.dev.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Snapshot of the directories of a tree: modification time and entries of each directory.
+ * A directory whose modification time did not change since the snapshot is not listed again.
+ */
+public class TreeSnapshot {
+
+	private final static Charset charset = Charset.forName("UTF-8");
+
+	private final Map<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+
+	public Directory get(File dir){
+		return directories.get(dir.getPath());
+	}
+
+	public void put(File dir, Directory directory){
+		directories.put(dir.getPath(), directory);
+	}
+
+	public int size(){
+		return directories.size();
+	}
+
+	/**
+	 * Is the file in the listing of its directory
+	 */
+	public boolean contains(File file){
+		Directory directory = get(file.getParentFile());
+		return directory!=null && Collections.binarySearch(directory.entries, new Entry(file.getName(), false, 0, 0), Entry.order)>=0;
+	}
+
+	/**
+	 * Read a snapshot
+	 * @param file snapshot file
+	 * @return the snapshot (empty if the file does not exist or is unreadable)
+	 */
+	public static TreeSnapshot load(File file){
+		TreeSnapshot snapshot = new TreeSnapshot();
+		if(!file.exists())
+			return snapshot;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), charset));
+			try {
+				String line;
+				List<Entry> entries = null;
+				while((line = reader.readLine())!=null){
+					String[] fields = line.split("\t", 5);
+					if(fields.length==4 && "D".equals(fields[0])){
+						entries = new ArrayList<Entry>();
+						snapshot.directories.put(fields[3], new Directory(Long.parseLong(fields[1]), Long.parseLong(fields[2]), entries));
+					} else if(fields.length==5 && "E".equals(fields[0]) && entries!=null){
+						entries.add(new Entry(fields[4], "d".equals(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return new TreeSnapshot();
+		} catch (NumberFormatException e) {
+			return new TreeSnapshot();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Write the snapshot
+	 * @param file snapshot file (replaced atomically)
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath()+".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), charset));
+		try {
+			for(Map.Entry<String, Directory> d : directories.entrySet()){
+				Directory dir = d.getValue();
+				writer.write("D\t"+dir.lastModified+"\t"+dir.scanned+"\t"+d.getKey()+"\n");
+				for(Entry e : dir.entries)
+					writer.write("E\t"+(e.directory?"d":"f")+"\t"+e.size+"\t"+e.lastModified+"\t"+e.name+"\n");
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Listing of a directory
+	 */
+	public static class Directory {
+		final long lastModified; // modification time of the directory when listed
+		final long scanned; // time of the listing
+		final List<Entry> entries;
+
+		public Directory(long lastModified, long scanned, List<Entry> entries){
+			this.lastModified = lastModified;
+			this.scanned = scanned;
+			this.entries = Collections.unmodifiableList(entries);
+		}
+
+		public List<Entry> getEntries(){
+			return entries;
+		}
+	}
+
+	/**
+	 * Entry of a directory with its attributes
+	 */
+	public static class Entry {
+
+		// Listing order: directories first then by name
+		final static Comparator<Entry> order = new Comparator<Entry>() {
+			@Override
+			public int compare(Entry o1, Entry o2) {
+				if(o1.directory == o2.directory)
+					return o1.name.compareTo(o2.name);
+				else if(!o1.directory)
+					return 1;
+				else
+					return -1;
+			}
+		};
+
+		final String name;
+		final boolean directory;
+		final long size;
+		final long lastModified;
+
+		public Entry(String name, boolean directory, long size, long lastModified){
+			this.name = name;
+			this.directory = directory;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public boolean isDirectory(){
+			return directory;
+		}
+	}
+}